@@ -0,0 +1,50 @@
+package com.cdfive.sentinel.support.activemq;
+
+import com.alibaba.csp.sentinel.slots.block.RuleConstant;
+import com.alibaba.csp.sentinel.slots.block.flow.FlowRule;
+import com.alibaba.csp.sentinel.slots.block.flow.FlowRuleManager;
+
+import java.util.Collections;
+
+/**
+ * 基准测试资源的流控规则
+ * @author cdfive
+ */
+public final class BenchmarkRules {
+
+    /**没有规则*/
+    public static final String ABSENT = "absent";
+
+    /**总是通过的规则*/
+    public static final String PASS = "pass";
+
+    /**总是拦截的规则*/
+    public static final String BLOCK = "block";
+
+    private BenchmarkRules() {
+    }
+
+    /**
+     * 按mode加载资源的流控规则
+     * @param mode absent、pass或block
+     * @param resource 资源名称
+     */
+    public static void load(String mode, String resource) {
+        if (ABSENT.equals(mode)) {
+            FlowRuleManager.loadRules(Collections.<FlowRule>emptyList());
+            return;
+        }
+
+        FlowRule flowRule = new FlowRule();
+        flowRule.setResource(resource);
+        flowRule.setGrade(RuleConstant.FLOW_GRADE_QPS);
+        if (PASS.equals(mode)) {
+            flowRule.setCount(Integer.MAX_VALUE);
+        } else if (BLOCK.equals(mode)) {
+            flowRule.setCount(0);
+        } else {
+            throw new IllegalArgumentException("unknown rule mode: " + mode);
+        }
+        FlowRuleManager.loadRules(Collections.singletonList(flowRule));
+    }
+}
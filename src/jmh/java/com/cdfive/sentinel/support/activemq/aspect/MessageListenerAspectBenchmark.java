@@ -0,0 +1,185 @@
+package com.cdfive.sentinel.support.activemq.aspect;
+
+import com.cdfive.sentinel.support.activemq.BenchmarkRules;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.reflect.SourceLocation;
+import org.aspectj.runtime.internal.AroundClosure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageListenerAspect每条消息的开销
+ * <p>
+ * baseline：空的MessageListener
+ * advised：AspectJProxyFactory用MessageListenerAspect代理空的MessageListener，包括切点匹配和环绕通知的调用
+ * aroundOnMessage：只调用通知，使用空的ProceedingJoinPoint
+ * ruleMode：absent-没有规则，pass-总是通过的规则，block-总是拦截的规则
+ * </p>
+ * <p>
+ * 运行：mvn -P benchmark clean package && java -jar target/benchmarks.jar MessageListenerAspectBenchmark -prof gc
+ * </p>
+ * @author cdfive
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageListenerAspectBenchmark {
+
+    private static final String QUEUE_NAME = "benchmark.queue";
+
+    @Param({BenchmarkRules.ABSENT, BenchmarkRules.PASS, BenchmarkRules.BLOCK})
+    private String ruleMode;
+
+    private MessageListener messageListener;
+
+    private MessageListener advisedMessageListener;
+
+    private MessageListenerAspect messageListenerAspect;
+
+    private ProceedingJoinPoint proceedingJoinPoint;
+
+    private Message message;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkRules.load(ruleMode, QUEUE_NAME + "_receive");
+
+        messageListener = new StubMessageListener();
+
+        AspectJProxyFactory proxyFactory = new AspectJProxyFactory(messageListener);
+        proxyFactory.addAspect(MessageListenerAspect.class);
+        advisedMessageListener = proxyFactory.getProxy();
+
+        messageListenerAspect = new MessageListenerAspect();
+
+        ActiveMQTextMessage textMessage = new ActiveMQTextMessage();
+        textMessage.setDestination(new ActiveMQQueue(QUEUE_NAME));
+        textMessage.setText("benchmark");
+        message = textMessage;
+
+        proceedingJoinPoint = new StubProceedingJoinPoint(messageListener, message);
+    }
+
+    @Benchmark
+    public void baseline() {
+        messageListener.onMessage(message);
+    }
+
+    @Benchmark
+    public void advised() {
+        advisedMessageListener.onMessage(message);
+    }
+
+    @Benchmark
+    public void aroundOnMessage() throws Throwable {
+        messageListenerAspect.aroundOnMessage(proceedingJoinPoint, message);
+    }
+
+    /**
+     * 空的MessageListener，不做任何处理
+     */
+    private static class StubMessageListener implements MessageListener {
+        @Override
+        public void onMessage(Message message) {
+        }
+    }
+
+    /**
+     * 空的ProceedingJoinPoint，proceed调用MessageListener
+     */
+    private static class StubProceedingJoinPoint implements ProceedingJoinPoint {
+
+        private final MessageListener messageListener;
+
+        private final Message message;
+
+        private final Object[] args;
+
+        StubProceedingJoinPoint(MessageListener messageListener, Message message) {
+            this.messageListener = messageListener;
+            this.message = message;
+            this.args = new Object[]{message};
+        }
+
+        @Override
+        public void set$AroundClosure(AroundClosure arc) {
+        }
+
+        @Override
+        public Object proceed() throws Throwable {
+            messageListener.onMessage(message);
+            return null;
+        }
+
+        @Override
+        public Object proceed(Object[] args) throws Throwable {
+            messageListener.onMessage((Message) args[0]);
+            return null;
+        }
+
+        @Override
+        public String toShortString() {
+            return "execution(MessageListener.onMessage(..))";
+        }
+
+        @Override
+        public String toLongString() {
+            return toShortString();
+        }
+
+        @Override
+        public Object getThis() {
+            return messageListener;
+        }
+
+        @Override
+        public Object getTarget() {
+            return messageListener;
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return args;
+        }
+
+        @Override
+        public Signature getSignature() {
+            return null;
+        }
+
+        @Override
+        public SourceLocation getSourceLocation() {
+            return null;
+        }
+
+        @Override
+        public String getKind() {
+            return ProceedingJoinPoint.METHOD_EXECUTION;
+        }
+
+        @Override
+        public StaticPart getStaticPart() {
+            return null;
+        }
+    }
+}
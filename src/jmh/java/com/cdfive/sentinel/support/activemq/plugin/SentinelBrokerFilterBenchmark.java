@@ -0,0 +1,80 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import com.cdfive.sentinel.support.activemq.BenchmarkRules;
+import org.apache.activemq.broker.EmptyBroker;
+import org.apache.activemq.broker.ProducerBrokerExchange;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SentinelBrokerFilter.send每条消息的开销
+ * <p>
+ * 下一个broker为EmptyBroker，结果即过滤器本身的开销，baseline为不经过过滤器的EmptyBroker。
+ * ruleMode：absent-没有规则，pass-总是通过的规则，block-总是拦截的规则
+ * </p>
+ * <p>
+ * 运行：mvn -P benchmark clean package && java -jar target/benchmarks.jar SentinelBrokerFilterBenchmark -prof gc
+ * </p>
+ * @author cdfive
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SentinelBrokerFilterBenchmark {
+
+    private static final String QUEUE_NAME = "benchmark.queue";
+
+    @Param({BenchmarkRules.ABSENT, BenchmarkRules.PASS, BenchmarkRules.BLOCK})
+    private String ruleMode;
+
+    private EmptyBroker emptyBroker;
+
+    private SentinelBrokerFilter sentinelBrokerFilter;
+
+    private ProducerBrokerExchange producerExchange;
+
+    private Message message;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkRules.load(ruleMode, QUEUE_NAME + "_send");
+
+        emptyBroker = new EmptyBroker();
+        sentinelBrokerFilter = new SentinelBrokerFilter(emptyBroker);
+        producerExchange = new ProducerBrokerExchange();
+
+        ActiveMQTextMessage textMessage = new ActiveMQTextMessage();
+        textMessage.setDestination(new ActiveMQQueue(QUEUE_NAME));
+        textMessage.setMessageId(new MessageId("ID:benchmark-1-1:1:1:1", 1));
+        textMessage.setText("benchmark");
+        message = textMessage;
+    }
+
+    @Benchmark
+    public void baseline() throws Exception {
+        emptyBroker.send(producerExchange, message);
+    }
+
+    @Benchmark
+    public void send() throws Exception {
+        sentinelBrokerFilter.send(producerExchange, message);
+    }
+}
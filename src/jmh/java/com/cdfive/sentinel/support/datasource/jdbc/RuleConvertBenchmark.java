@@ -0,0 +1,144 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+import com.alibaba.csp.sentinel.slots.block.degrade.DegradeRule;
+import com.alibaba.csp.sentinel.slots.block.flow.FlowRule;
+import com.alibaba.csp.sentinel.slots.system.SystemRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * jdbc规则转换热点路径的基准测试
+ * <p>
+ * convert：List<Map<String, Object>>转为XxxRule，readSource和快照文件使用
+ * mapRows：通过mapRow把ResultSet转为XxxRule，刷新时使用
+ * getMapVal：解析map中的值
+ * initInsertSqlParametersList：XxxRule转为insert语句的参数，write和快照文件使用
+ * </p>
+ * <p>
+ * 运行：mvn -P benchmark clean package && java -jar target/benchmarks.jar RuleConvertBenchmark -prof gc
+ * </p>
+ * @author cdfive
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleConvertBenchmark {
+
+    private static final int APP_ID = 1;
+
+    @Param({"100", "1000", "10000", "100000"})
+    private int rowCount;
+
+    private FlowJdbcDataSource flowDataSource;
+    private DegradeJdbcDataSource degradeDataSource;
+    private SystemJdbcDataSource systemDataSource;
+
+    private String[] flowColumns;
+    private List<Object[]> flowRows;
+
+    private List<Map<String, Object>> flowListMap;
+    private List<Map<String, Object>> degradeListMap;
+    private List<Map<String, Object>> systemListMap;
+
+    private List<FlowRule> flowRules;
+    private List<DegradeRule> degradeRules;
+    private List<SystemRule> systemRules;
+
+    @Setup
+    public void setup() {
+        // 构造时加载空表，基准测试直接使用生成的行
+        DataSource emptyDataSource = SyntheticJdbc.dataSource(new String[0], Collections.<Object[]>emptyList());
+        flowDataSource = new FlowJdbcDataSource(emptyDataSource, APP_ID, "benchmark", "127.0.0.1", 8080);
+        degradeDataSource = new DegradeJdbcDataSource(emptyDataSource, APP_ID, "benchmark", "127.0.0.1", 8080);
+        systemDataSource = new SystemJdbcDataSource(emptyDataSource, APP_ID, "benchmark", "127.0.0.1", 8080);
+
+        flowColumns = SyntheticJdbc.ruleTableColumns(flowDataSource.initRuleColumns());
+        flowRows = SyntheticJdbc.ruleRows(flowColumns, rowCount);
+        String[] degradeColumns = SyntheticJdbc.ruleTableColumns(degradeDataSource.initRuleColumns());
+        List<Object[]> degradeRows = SyntheticJdbc.ruleRows(degradeColumns, rowCount);
+        String[] systemColumns = SyntheticJdbc.ruleTableColumns(systemDataSource.initRuleColumns());
+        List<Object[]> systemRows = SyntheticJdbc.ruleRows(systemColumns, rowCount);
+
+        flowListMap = SyntheticJdbc.toListMap(flowColumns, flowRows);
+        degradeListMap = SyntheticJdbc.toListMap(degradeColumns, degradeRows);
+        systemListMap = SyntheticJdbc.toListMap(systemColumns, systemRows);
+
+        flowRules = flowDataSource.convert(flowListMap);
+        degradeRules = degradeDataSource.convert(degradeListMap);
+        systemRules = systemDataSource.convert(systemListMap);
+    }
+
+    @Benchmark
+    public List<FlowRule> flowConvert() {
+        return flowDataSource.convert(flowListMap);
+    }
+
+    @Benchmark
+    public List<DegradeRule> degradeConvert() {
+        return degradeDataSource.convert(degradeListMap);
+    }
+
+    @Benchmark
+    public List<SystemRule> systemConvert() {
+        return systemDataSource.convert(systemListMap);
+    }
+
+    @Benchmark
+    public List<FlowRule> flowMapRows() throws SQLException {
+        ResultSet resultSet = SyntheticJdbc.resultSet(flowColumns, flowRows);
+        int[] columnIndexes = flowDataSource.resolveRuleColumnIndexes(resultSet.getMetaData());
+        flowDataSource.beginMapRows();
+        List<FlowRule> rules = new ArrayList<FlowRule>(rowCount);
+        while (resultSet.next()) {
+            rules.add(flowDataSource.mapRow(resultSet, columnIndexes));
+        }
+        return rules;
+    }
+
+    @Benchmark
+    public void getMapVal(Blackhole blackhole) {
+        for (Map<String, Object> map : flowListMap) {
+            blackhole.consume(flowDataSource.getMapStringVal(map, "resource"));
+            blackhole.consume(flowDataSource.getMapIntVal(map, "grade"));
+            blackhole.consume(flowDataSource.getMapDoubleVal(map, "_count"));
+            blackhole.consume(flowDataSource.getMapLongVal(map, "id"));
+        }
+    }
+
+    @Benchmark
+    public List<Object[]> flowInitInsertSqlParametersList() {
+        return flowDataSource.initInsertSqlParametersList(flowRules);
+    }
+
+    @Benchmark
+    public List<Object[]> degradeInitInsertSqlParametersList() {
+        return degradeDataSource.initInsertSqlParametersList(degradeRules);
+    }
+
+    @Benchmark
+    public List<Object[]> systemInitInsertSqlParametersList() {
+        return systemDataSource.initInsertSqlParametersList(systemRules);
+    }
+}
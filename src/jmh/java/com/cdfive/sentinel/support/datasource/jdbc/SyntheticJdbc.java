@@ -0,0 +1,233 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基准测试用的模拟jdbc对象，每次查询返回相同的行
+ * <p>
+ * 注意：对象是动态代理，每次调用都会分配参数数组，计入gc.alloc.rate，结果只用于相对比较
+ * </p>
+ * @author cdfive
+ */
+final class SyntheticJdbc {
+
+    private SyntheticJdbc() {
+    }
+
+    /**
+     * 规则表的行，值的类型和MySQL驱动返回的相同
+     */
+    static List<Object[]> ruleRows(String[] columns, int rowCount) {
+        List<Object[]> rows = new ArrayList<Object[]>(rowCount);
+        Timestamp updateTime = new Timestamp(System.currentTimeMillis());
+        for (int i = 0; i < rowCount; i++) {
+            Object[] row = new Object[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                row[j] = columnValue(columns[j], i, updateTime);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * 转为List<Map<String, Object>>的行，即convert的输入
+     */
+    static List<Map<String, Object>> toListMap(String[] columns, List<Object[]> rows) {
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(rows.size());
+        for (Object[] row : rows) {
+            Map<String, Object> map = new HashMap<String, Object>();
+            for (int i = 0; i < columns.length; i++) {
+                map.put(columns[i], row[i]);
+            }
+            list.add(map);
+        }
+        return list;
+    }
+
+    /**
+     * 规则表的列，id、update_time、enabled、deleted以及规则的列
+     */
+    static String[] ruleTableColumns(String[] ruleColumns) {
+        String[] columns = new String[ruleColumns.length + 4];
+        columns[0] = "id";
+        columns[1] = "update_time";
+        columns[2] = "enabled";
+        columns[3] = "deleted";
+        System.arraycopy(ruleColumns, 0, columns, 4, ruleColumns.length);
+        return columns;
+    }
+
+    static DataSource dataSource(final String[] columns, final List<Object[]> rows) {
+        return proxy(DataSource.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getConnection".equals(method.getName())) {
+                    return connection(columns, rows);
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    static Connection connection(final String[] columns, final List<Object[]> rows) {
+        return proxy(Connection.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("prepareStatement".equals(method.getName())) {
+                    return preparedStatement(columns, rows);
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    static PreparedStatement preparedStatement(final String[] columns, final List<Object[]> rows) {
+        return proxy(PreparedStatement.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("executeQuery".equals(method.getName())) {
+                    return resultSet(columns, rows);
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    static ResultSet resultSet(final String[] columns, final List<Object[]> rows) {
+        final Map<String, Integer> indexMap = new HashMap<String, Integer>();
+        for (int i = 0; i < columns.length; i++) {
+            indexMap.put(columns[i], i + 1);
+        }
+        final ResultSetMetaData metaData = proxy(ResultSetMetaData.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ("getColumnCount".equals(name)) {
+                    return columns.length;
+                }
+                if ("getColumnLabel".equals(name) || "getColumnName".equals(name)) {
+                    return columns[(Integer) args[0] - 1];
+                }
+                return defaultValue(method);
+            }
+        });
+
+        return proxy(ResultSet.class, new InvocationHandler() {
+
+            private int rowIndex = -1;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ("next".equals(name)) {
+                    return ++rowIndex < rows.size();
+                }
+                if ("getMetaData".equals(name)) {
+                    return metaData;
+                }
+                if ("findColumn".equals(name)) {
+                    return columnIndex(args[0]);
+                }
+                if (name.startsWith("get") && args != null && args.length == 1) {
+                    Object value = rows.get(rowIndex)[columnIndex(args[0]) - 1];
+                    return convertValue(value, method.getReturnType());
+                }
+                return defaultValue(method);
+            }
+
+            private int columnIndex(Object column) throws SQLException {
+                if (column instanceof Integer) {
+                    return (Integer) column;
+                }
+                Integer index = indexMap.get(column);
+                if (index == null) {
+                    throw new SQLException("column not found: " + column);
+                }
+                return index;
+            }
+        });
+    }
+
+    private static Object columnValue(String column, int i, Timestamp updateTime) {
+        if ("id".equals(column)) {
+            return (long) i + 1;
+        }
+        if ("update_time".equals(column)) {
+            return updateTime;
+        }
+        if ("enabled".equals(column)) {
+            return 1;
+        }
+        if ("deleted".equals(column)) {
+            return 0;
+        }
+        if ("resource".equals(column)) {
+            return "com.cdfive.demo.service.DemoService:hello" + i + "(java.lang.String)";
+        }
+        if ("limit_app".equals(column)) {
+            return "default";
+        }
+        if ("ref_resource".equals(column)) {
+            return null;
+        }
+        if ("_count".equals(column) || "highest_system_load".equals(column) || "qps".equals(column)) {
+            return 10.0D + i % 100;
+        }
+        if ("avg_rt".equals(column) || "max_thread".equals(column)) {
+            return (long) (100 + i % 100);
+        }
+        return i % 3;
+    }
+
+    private static Object convertValue(Object value, Class<?> type) {
+        if (type == String.class) {
+            return value == null ? null : value.toString();
+        }
+        if (type == int.class) {
+            return value == null ? 0 : ((Number) value).intValue();
+        }
+        if (type == long.class) {
+            return value == null ? 0L : ((Number) value).longValue();
+        }
+        if (type == double.class) {
+            return value == null ? 0D : ((Number) value).doubleValue();
+        }
+        return value;
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0D;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(SyntheticJdbc.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
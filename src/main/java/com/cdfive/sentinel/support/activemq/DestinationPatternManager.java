@@ -0,0 +1,118 @@
+package com.cdfive.sentinel.support.activemq;
+
+import com.alibaba.csp.sentinel.property.PropertyListener;
+import com.alibaba.csp.sentinel.property.SentinelProperty;
+import com.alibaba.csp.sentinel.slots.block.AbstractRule;
+import com.cdfive.sentinel.support.SentinelSupportConstant;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 规则的资源名称，DestinationResourceCache据此把队列映射到通配符规则的资源
+ * <p>
+ * 规则的资源名称可以是activemq的通配符队列名称加后缀，如order.&gt;_send、*.events_receive，
+ * 一条规则即可对匹配的所有队列生效；资源名称按类型(flow、degrade等)分别加载，合并后有变化时version加1，
+ * DestinationResourceCache发现version变化后重建索引
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public final class DestinationPatternManager {
+
+    /**流量控制规则*/
+    public static final String TYPE_FLOW = "flow";
+
+    /**熔断降级规则*/
+    public static final String TYPE_DEGRADE = "degrade";
+
+    /**热点参数限流规则*/
+    public static final String TYPE_PARAM_FLOW = "paramFlow";
+
+    /**类型=>资源名称*/
+    private static final Map<String, Set<String>> RESOURCE_NAMES_MAP = new HashMap<String, Set<String>>();
+
+    /**所有类型合并后的资源名称*/
+    private static volatile Set<String> resourceNames = Collections.emptySet();
+
+    /**资源名称的版本，合并后的资源名称有变化时加1*/
+    private static volatile int version;
+
+    private DestinationPatternManager() {
+    }
+
+    /**
+     * 监听规则的变化，一般在XxxRuleManager.register2Property之后调用
+     * @param type 规则类型，如TYPE_FLOW
+     * @param property 规则的property
+     */
+    public static <R extends AbstractRule> void register2Property(final String type, SentinelProperty<List<R>> property) {
+        property.addListener(new PropertyListener<List<R>>() {
+            @Override
+            public void configUpdate(List<R> rules) {
+                loadRules(type, rules);
+            }
+
+            @Override
+            public void configLoad(List<R> rules) {
+                loadRules(type, rules);
+            }
+        });
+    }
+
+    /**
+     * 加载规则的资源名称
+     * @param type 规则类型
+     * @param rules 规则，为null则清空该类型
+     */
+    public static void loadRules(String type, List<? extends AbstractRule> rules) {
+        Set<String> names = new HashSet<String>();
+        if (rules != null) {
+            for (AbstractRule rule : rules) {
+                if (rule != null && rule.getResource() != null) {
+                    names.add(rule.getResource());
+                }
+            }
+        }
+        loadResources(type, names);
+    }
+
+    /**
+     * 加载资源名称
+     * @param type 规则类型
+     * @param names 资源名称
+     */
+    public static synchronized void loadResources(String type, Collection<String> names) {
+        RESOURCE_NAMES_MAP.put(type, new HashSet<String>(names));
+
+        Set<String> merged = new HashSet<String>();
+        for (Set<String> typeNames : RESOURCE_NAMES_MAP.values()) {
+            merged.addAll(typeNames);
+        }
+        if (!merged.equals(resourceNames)) {
+            resourceNames = Collections.unmodifiableSet(merged);
+            version++;
+            log.info(SentinelSupportConstant.LOG_PRIFEX + "DestinationPatternManager resources changed, type=" + type + ",version=" + version + ",size=" + merged.size());
+        }
+    }
+
+    /**
+     * 所有类型合并后的资源名称
+     */
+    public static Set<String> getResourceNames() {
+        return resourceNames;
+    }
+
+    /**
+     * 资源名称的版本
+     */
+    public static int getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,68 @@
+package com.cdfive.sentinel.support.activemq;
+
+import com.alibaba.csp.sentinel.CtSph;
+import com.alibaba.csp.sentinel.Entry;
+import com.alibaba.csp.sentinel.EntryType;
+import com.alibaba.csp.sentinel.Env;
+import com.alibaba.csp.sentinel.SphU;
+import com.alibaba.csp.sentinel.slotchain.StringResourceWrapper;
+import com.alibaba.csp.sentinel.slots.block.BlockException;
+import lombok.Getter;
+
+/**
+ * 队列对应的sentinel资源，资源名称和ResourceWrapper预先创建，每条消息不再拼接资源名称和创建ResourceWrapper
+ * @author cdfive
+ */
+@Getter
+public class DestinationResource {
+
+    /**空参数，避免每次entry创建可变参数数组*/
+    public static final Object[] NO_ARGS = new Object[0];
+
+    /**资源名称*/
+    private final String name;
+
+    /**上下文名称，同一缓存的资源共用一个，避免上下文数量随队列增长超过sentinel的上限(2000)*/
+    private final String contextName;
+
+    /**流量类型*/
+    private final EntryType entryType;
+
+    /**资源*/
+    private final StringResourceWrapper resourceWrapper;
+
+    public DestinationResource(String name, EntryType entryType) {
+        this(name, entryType, name);
+    }
+
+    public DestinationResource(String name, EntryType entryType, String contextName) {
+        this.name = name;
+        this.contextName = contextName;
+        this.entryType = entryType;
+        this.resourceWrapper = new StringResourceWrapper(name, entryType);
+    }
+
+    /**
+     * 进入资源，等同于SphU.entry(name, entryType)
+     */
+    public Entry entry() throws BlockException {
+        return entry(1);
+    }
+
+    /**
+     * 进入资源并申请count个令牌，等同于SphU.entry(name, entryType, count)，退出时需调用entry.exit(count)
+     */
+    public Entry entry(int count) throws BlockException {
+        return entry(count, NO_ARGS);
+    }
+
+    /**
+     * 进入资源并申请count个令牌，args为热点参数限流的参数，退出时需调用entry.exit(count, args)
+     */
+    public Entry entry(int count, Object[] args) throws BlockException {
+        if (Env.sph instanceof CtSph) {
+            return ((CtSph) Env.sph).entry(resourceWrapper, count, args);
+        }
+        return SphU.entry(name, entryType, count, args);
+    }
+}
@@ -0,0 +1,377 @@
+package com.cdfive.sentinel.support.activemq;
+
+import com.alibaba.csp.sentinel.EntryType;
+import com.cdfive.sentinel.support.SentinelSupportConstant;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.activemq.advisory.AdvisorySupport;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.filter.DestinationMap;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 队列对应的sentinel资源缓存，资源名称=队列名称+后缀
+ * <p>
+ * sentinel的上下文最多2000个、资源最多6000个，超过后新的队列不再受保护，因此资源和上下文的数量不随队列增长：
+ * 同一缓存的资源共用一个上下文(sentinel_activemq+后缀)；临时队列的名称每个连接都不同，按queue/topic归并为$temp-queue、$temp-topic，
+ * advisory topic归并为$advisory；普通队列缓存在ConcurrentHashMap中，超过maxSize后新的队列归并为$other，有同名规则的队列除外(数量不超过规则数)。
+ * 归并到共用资源的队列另外缓存(最多maxSize个，满后清空重建)，不需要每条消息重新查找；归并的次数按桶计数，见getCollapsedStats
+ * </p>
+ * <p>
+ * 匹配excludedDestinations(通配符)的队列不检查，get返回null
+ * </p>
+ * <p>
+ * 规则的资源可以是通配符队列名称+后缀(见DestinationPatternManager)：队列没有同名的规则、但匹配通配符规则时，资源名称=通配符+后缀，
+ * 匹配多个时取最具体的(逐级比较，名称优先于*，*优先于&gt;)；通配符在activemq的DestinationMap(按.分级的树)中查找，
+ * 只在队列第一次出现时查找一次，规则的资源名称变化后重建
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public class DestinationResourceCache {
+
+    /**默认普通队列缓存的最大数量*/
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**上下文名称前缀，上下文名称=前缀+后缀*/
+    public static final String CONTEXT_PREFIX = "sentinel_activemq";
+
+    /**临时queue归并的名称*/
+    public static final String TEMP_QUEUE_BUCKET = "$temp-queue";
+
+    /**临时topic归并的名称*/
+    public static final String TEMP_TOPIC_BUCKET = "$temp-topic";
+
+    /**advisory topic归并的名称*/
+    public static final String ADVISORY_BUCKET = "$advisory";
+
+    /**超过maxSize后新队列归并的名称*/
+    public static final String OTHER_BUCKET = "$other";
+
+    /**缓存已满的告警间隔(毫秒)*/
+    private static final long FULL_WARN_INTERVAL_MS = 60000L;
+
+    /**排除的队列在缓存中的标记*/
+    private static final DestinationResource EXCLUDED = new DestinationResource("", EntryType.OUT);
+
+    /**资源名称后缀*/
+    private final String suffix;
+
+    /**流量类型*/
+    private final EntryType entryType;
+
+    /**上下文名称*/
+    private final String contextName;
+
+    /**普通队列缓存的最大数量*/
+    private final int maxSize;
+
+    private final DestinationResource tempQueueResource;
+
+    private final DestinationResource tempTopicResource;
+
+    private final DestinationResource advisoryResource;
+
+    private final DestinationResource otherResource;
+
+    private final AtomicLong tempCollapsedCount = new AtomicLong();
+
+    private final AtomicLong advisoryCollapsedCount = new AtomicLong();
+
+    private final AtomicLong otherCollapsedCount = new AtomicLong();
+
+    /**上次缓存已满告警的时间(毫秒)*/
+    private final AtomicLong lastFullWarnTime = new AtomicLong();
+
+    /**排除的队列通配符=>通配符，没有排除时为null*/
+    private volatile DestinationMap excludedMap;
+
+    /**普通队列的资源，规则的资源名称或排除的队列变化后整体替换*/
+    private volatile PatternIndex patternIndex;
+
+    public DestinationResourceCache(String suffix, EntryType entryType) {
+        this(suffix, entryType, DEFAULT_MAX_SIZE);
+    }
+
+    public DestinationResourceCache(String suffix, EntryType entryType, int maxSize) {
+        this.suffix = suffix;
+        this.entryType = entryType;
+        this.contextName = CONTEXT_PREFIX + suffix;
+        this.maxSize = maxSize;
+        this.tempQueueResource = newResource(TEMP_QUEUE_BUCKET);
+        this.tempTopicResource = newResource(TEMP_TOPIC_BUCKET);
+        this.advisoryResource = newResource(ADVISORY_BUCKET);
+        this.otherResource = newResource(OTHER_BUCKET);
+        this.patternIndex = new PatternIndex(DestinationPatternManager.getVersion(), DestinationPatternManager.getResourceNames());
+    }
+
+    /**
+     * 获取队列对应的资源，排除的队列返回null
+     */
+    public DestinationResource get(ActiveMQDestination destination) {
+        if (destination.isTemporary()) {
+            tempCollapsedCount.incrementAndGet();
+            return destination.isQueue() ? tempQueueResource : tempTopicResource;
+        }
+
+        PatternIndex index = getPatternIndex();
+        DestinationResource resource = index.resourceMap.get(destination);
+        if (resource == null) {
+            resource = index.sharedResourceMap.get(destination);
+            if (resource == null) {
+                resource = resolve(index, destination);
+            }
+        }
+
+        if (resource == EXCLUDED) {
+            return null;
+        }
+        if (resource == advisoryResource) {
+            advisoryCollapsedCount.incrementAndGet();
+        } else if (resource == otherResource) {
+            otherCollapsedCount.incrementAndGet();
+        }
+        return resource;
+    }
+
+    /**
+     * 移除队列对应的资源，队列删除时调用
+     */
+    public void remove(ActiveMQDestination destination) {
+        if (!destination.isTemporary()) {
+            PatternIndex index = patternIndex;
+            index.resourceMap.remove(destination);
+            index.sharedResourceMap.remove(destination);
+        }
+    }
+
+    /**
+     * 缓存的资源数量
+     */
+    public int size() {
+        return patternIndex.resourceMap.size();
+    }
+
+    /**
+     * 设置排除的队列，支持通配符，queue和topic都排除；已缓存的资源一起丢弃
+     * @param names 队列名称，为空则不排除
+     */
+    public void setExcludedDestinations(Collection<String> names) {
+        DestinationMap map = null;
+        if (names != null) {
+            for (String name : names) {
+                if (name == null || name.trim().length() == 0) {
+                    continue;
+                }
+                if (map == null) {
+                    map = new DestinationMap();
+                }
+                map.put(new ActiveMQQueue(name.trim()), name.trim());
+                map.put(new ActiveMQTopic(name.trim()), name.trim());
+            }
+        }
+
+        synchronized (this) {
+            excludedMap = map;
+            patternIndex = new PatternIndex(patternIndex.version, DestinationPatternManager.getResourceNames());
+        }
+    }
+
+    /**
+     * 按桶统计归并的次数，如$temp-queue/$temp-topic=10,$advisory=0,$other=0
+     */
+    public String getCollapsedStats() {
+        return TEMP_QUEUE_BUCKET + "/" + TEMP_TOPIC_BUCKET + "=" + tempCollapsedCount.get() + "," + ADVISORY_BUCKET + "=" + advisoryCollapsedCount.get()
+            + "," + OTHER_BUCKET + "=" + otherCollapsedCount.get();
+    }
+
+    /**
+     * 队列第一次出现时查找对应的资源并缓存：排除的队列、advisory topic、同名或通配符规则，缓存已满时没有同名规则的新队列归并为$other
+     */
+    private DestinationResource resolve(PatternIndex index, ActiveMQDestination destination) {
+        DestinationMap excluded = excludedMap;
+        if (excluded != null && !excluded.get(destination).isEmpty()) {
+            return cacheShared(index, destination, EXCLUDED);
+        }
+        if (AdvisorySupport.isAdvisoryTopic(destination)) {
+            return cacheShared(index, destination, advisoryResource);
+        }
+
+        DestinationResource resource = index.resolvePattern(destination);
+        if (resource != null) {
+            return cacheShared(index, destination, resource);
+        }
+        if (index.resourceMap.size() >= maxSize && !index.exactNames.contains(destination.getPhysicalName())) {
+            warnFull();
+            return cacheShared(index, destination, otherResource);
+        }
+
+        resource = newResource(destination.getPhysicalName());
+        DestinationResource existed = index.resourceMap.putIfAbsent(destination, resource);
+        return existed != null ? existed : resource;
+    }
+
+    /**
+     * 缓存归并到共用资源的队列，达到maxSize后清空再缓存
+     * <p>
+     * 不缓存时每条消息都要在DestinationMap中查找(全局锁)；清空后仍在使用的队列各重新查找一次，不需要按访问顺序淘汰
+     * </p>
+     */
+    private DestinationResource cacheShared(PatternIndex index, ActiveMQDestination destination, DestinationResource resource) {
+        if (index.sharedResourceMap.size() >= maxSize) {
+            index.sharedResourceMap.clear();
+        }
+        index.sharedResourceMap.put(destination, resource);
+        return resource;
+    }
+
+    /**
+     * 缓存已满，每FULL_WARN_INTERVAL_MS最多告警一次
+     */
+    private void warnFull() {
+        long now = System.currentTimeMillis();
+        long last = lastFullWarnTime.get();
+        if (now - last >= FULL_WARN_INTERVAL_MS && lastFullWarnTime.compareAndSet(last, now)) {
+            log.warn(SentinelSupportConstant.LOG_PRIFEX + "DestinationResourceCache of " + suffix + " is full, maxSize=" + maxSize
+                + ", new destinations collapse into " + OTHER_BUCKET + suffix + ", collapsedCount=" + otherCollapsedCount.get());
+        }
+    }
+
+    /**
+     * 规则的资源名称变化后重建索引，旧索引缓存的资源一起丢弃
+     */
+    private PatternIndex getPatternIndex() {
+        PatternIndex index = patternIndex;
+        int version = DestinationPatternManager.getVersion();
+        if (index.version == version) {
+            return index;
+        }
+
+        synchronized (this) {
+            index = patternIndex;
+            if (index.version != version) {
+                index = new PatternIndex(version, DestinationPatternManager.getResourceNames());
+                patternIndex = index;
+            }
+            return index;
+        }
+    }
+
+    private DestinationResource newResource(String name) {
+        return new DestinationResource(name + suffix, entryType, contextName);
+    }
+
+    /**
+     * 比较两个通配符的具体程度，逐级比较：名称 &gt; * &gt; &gt;，级数多的更具体
+     */
+    static int compareSpecificity(String pattern1, String pattern2) {
+        String[] paths1 = pattern1.split("\\.");
+        String[] paths2 = pattern2.split("\\.");
+        for (int i = 0; i < paths1.length && i < paths2.length; i++) {
+            int rank1 = rank(paths1[i]);
+            int rank2 = rank(paths2[i]);
+            if (rank1 != rank2) {
+                return rank1 - rank2;
+            }
+        }
+        if (paths1.length != paths2.length) {
+            return paths1.length - paths2.length;
+        }
+        return pattern2.compareTo(pattern1);
+    }
+
+    private static int rank(String path) {
+        if (">".equals(path)) {
+            return 0;
+        }
+        if ("*".equals(path)) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * 某个版本的规则资源名称对应的通配符索引和队列资源
+     */
+    private class PatternIndex {
+
+        /**DestinationPatternManager的版本*/
+        private final int version;
+
+        /**有同名规则的队列名称，优先于通配符*/
+        private final Set<String> exactNames = new HashSet<String>();
+
+        /**通配符=>通配符，queue和topic各放一份；没有通配符规则时为null*/
+        private final DestinationMap patternMap;
+
+        /**通配符=>资源，匹配同一通配符的队列共用一个资源*/
+        private final ConcurrentHashMap<String, DestinationResource> patternResourceMap = new ConcurrentHashMap<String, DestinationResource>();
+
+        /**普通队列的资源*/
+        private final ConcurrentHashMap<ActiveMQDestination, DestinationResource> resourceMap = new ConcurrentHashMap<ActiveMQDestination, DestinationResource>();
+
+        /**归并到共用资源(排除、advisory、通配符、$other)的队列*/
+        private final ConcurrentHashMap<ActiveMQDestination, DestinationResource> sharedResourceMap = new ConcurrentHashMap<ActiveMQDestination, DestinationResource>();
+
+        PatternIndex(int version, Set<String> resourceNames) {
+            this.version = version;
+
+            DestinationMap map = null;
+            for (String resourceName : resourceNames) {
+                if (!resourceName.endsWith(suffix) || resourceName.length() == suffix.length()) {
+                    continue;
+                }
+
+                String name = resourceName.substring(0, resourceName.length() - suffix.length());
+                ActiveMQQueue queue = new ActiveMQQueue(name);
+                if (!queue.isPattern() || queue.isComposite()) {
+                    exactNames.add(name);
+                    continue;
+                }
+
+                if (map == null) {
+                    map = new DestinationMap();
+                }
+                map.put(queue, name);
+                map.put(new ActiveMQTopic(name), name);
+            }
+            this.patternMap = map;
+        }
+
+        /**
+         * 匹配的通配符规则对应的资源，有同名规则或不匹配时返回null
+         */
+        DestinationResource resolvePattern(ActiveMQDestination destination) {
+            String name = destination.getPhysicalName();
+            if (patternMap == null || exactNames.contains(name)) {
+                return null;
+            }
+
+            String pattern = null;
+            for (Object matched : patternMap.get(destination)) {
+                if (pattern == null || compareSpecificity((String) matched, pattern) > 0) {
+                    pattern = (String) matched;
+                }
+            }
+            if (pattern == null) {
+                return null;
+            }
+
+            DestinationResource resource = patternResourceMap.get(pattern);
+            if (resource == null) {
+                resource = newResource(pattern);
+                DestinationResource existed = patternResourceMap.putIfAbsent(pattern, resource);
+                if (existed != null) {
+                    resource = existed;
+                }
+            }
+            return resource;
+        }
+    }
+}
@@ -2,10 +2,11 @@ package com.cdfive.sentinel.support.activemq.aspect;
 
 import com.alibaba.csp.sentinel.Entry;
 import com.alibaba.csp.sentinel.EntryType;
-import com.alibaba.csp.sentinel.SphU;
 import com.alibaba.csp.sentinel.context.ContextUtil;
 import com.alibaba.csp.sentinel.slots.block.BlockException;
 import com.cdfive.sentinel.support.SentinelSupportConstant;
+import com.cdfive.sentinel.support.activemq.DestinationResource;
+import com.cdfive.sentinel.support.activemq.DestinationResourceCache;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.activemq.command.ActiveMQMessage;
 import org.aspectj.lang.ProceedingJoinPoint;
@@ -26,6 +27,9 @@ public class MessageListenerAspect {
     /**资源名称后缀，资源名称=队列名称_receive*/
     private static final String RECEIVE = "_receive";
 
+    /**队列对应的资源缓存*/
+    private final DestinationResourceCache receiveResourceCache = new DestinationResourceCache(RECEIVE, EntryType.IN);
+
     public MessageListenerAspect() {
         log.info(SentinelSupportConstant.LOG_PRIFEX + "MessageListenerAspect init");
     }
@@ -36,15 +40,19 @@ public class MessageListenerAspect {
 
     @Around("pointCutOnMessage(message)")
     public void aroundOnMessage(ProceedingJoinPoint pjp, Message message) throws Throwable {
-        String name = ((ActiveMQMessage) message).getDestination().getPhysicalName() + RECEIVE;
+        DestinationResource resource = receiveResourceCache.get(((ActiveMQMessage) message).getDestination());
+        if (resource == null) {
+            pjp.proceed();
+            return;
+        }
 
         Entry entry = null;
         try {
-            ContextUtil.enter(name);
-            entry = SphU.entry(name, EntryType.IN);
+            ContextUtil.enter(resource.getContextName());
+            entry = resource.entry();
             pjp.proceed();
         } catch (BlockException ex) {
-            log.warn("blocked=>name: " + name);
+            log.warn("blocked=>name: " + resource.getName());
         } finally {
             if (entry != null) {
                 entry.exit();
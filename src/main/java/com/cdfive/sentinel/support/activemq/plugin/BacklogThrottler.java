@@ -0,0 +1,293 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.activemq.broker.Broker;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.DestinationStatistics;
+import org.apache.activemq.broker.region.Queue;
+import org.apache.activemq.command.ActiveMQDestination;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 按队列积压自适应限制发送速率
+ * <p>
+ * 后台线程每intervalMs读取broker中每个queue的统计：积压数量、入队和出队数量、内存使用率。
+ * 积压按当前出队速率需要超过maxBacklogSeconds才能消费完且仍在增长，或内存使用率达到maxMemoryPercent时，该队列进入限速，
+ * 速率为本周期的入队速率乘以DECREASE_FACTOR；之后仍过载则继续乘性减，否则每周期加性增(出队速率的INCREASE_RATIO)，
+ * 积压降到maxBacklogSeconds的一半以下且速率不低于出队速率后解除。阈值按消费速度和内存比例计算，不需要按队列配置
+ * </p>
+ * <p>
+ * 发送时tryAcquire按当前速率的令牌桶检查，未限速的队列只有一次map查找
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public class BacklogThrottler {
+
+    /**日志前缀*/
+    private static final String LOG_PRIFEX = "[BacklogThrottler]";
+
+    /**默认统计间隔(毫秒)*/
+    public static final long DEFAULT_INTERVAL_MS = 1000L;
+
+    /**默认积压的最长消费时间(秒)*/
+    public static final int DEFAULT_MAX_BACKLOG_SECONDS = 60;
+
+    /**默认队列内存使用率上限(%)*/
+    public static final int DEFAULT_MAX_MEMORY_PERCENT = 70;
+
+    /**默认最低速率(每秒)，消费者全部停止时生产者仍可以少量发送*/
+    public static final double DEFAULT_MIN_RATE = 1D;
+
+    /**过载时的速率系数*/
+    private static final double DECREASE_FACTOR = 0.5D;
+
+    /**恢复时每周期增加的速率占出队速率的比例*/
+    private static final double INCREASE_RATIO = 0.1D;
+
+    /**SentinelBrokerFilter的下一个broker*/
+    private final Broker broker;
+
+    /**统计间隔(毫秒)*/
+    private final long intervalMs;
+
+    /**积压的最长消费时间(秒)*/
+    private final int maxBacklogSeconds;
+
+    /**队列内存使用率上限(%)*/
+    private final int maxMemoryPercent;
+
+    /**最低速率(每秒)*/
+    private final double minRate;
+
+    /**队列=>积压状态*/
+    private final ConcurrentMap<ActiveMQDestination, Backlog> backlogMap = new ConcurrentHashMap<ActiveMQDestination, Backlog>();
+
+    /**被限速拦截的消息数量*/
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /**后台线程*/
+    private final Thread statThread;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param broker SentinelBrokerFilter的下一个broker
+     * @param intervalMs 统计间隔(毫秒)
+     * @param maxBacklogSeconds 积压的最长消费时间(秒)
+     * @param maxMemoryPercent 队列内存使用率上限(%)
+     * @param minRate 最低速率(每秒)
+     */
+    public BacklogThrottler(Broker broker, long intervalMs, int maxBacklogSeconds, int maxMemoryPercent, double minRate) {
+        if (intervalMs <= 0 || maxBacklogSeconds <= 0 || maxMemoryPercent <= 0 || minRate < 0) {
+            throw new IllegalArgumentException("intervalMs,maxBacklogSeconds,maxMemoryPercent必须大于0，minRate不能小于0");
+        }
+
+        this.broker = broker;
+        this.intervalMs = intervalMs;
+        this.maxBacklogSeconds = maxBacklogSeconds;
+        this.maxMemoryPercent = maxMemoryPercent;
+        this.minRate = minRate;
+
+        this.statThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "sentinel-backlog-throttler");
+        this.statThread.setDaemon(true);
+    }
+
+    public void start() {
+        statThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(statThread);
+    }
+
+    /**
+     * 检查队列的发送速率，未限速时直接通过
+     */
+    public boolean tryAcquire(ActiveMQDestination destination) {
+        Backlog backlog = backlogMap.get(destination);
+        if (backlog == null || backlog.rate < 0) {
+            return true;
+        }
+        if (backlog.tryAcquire(System.nanoTime())) {
+            return true;
+        }
+        throttledCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 队列删除时移除
+     */
+    public void remove(ActiveMQDestination destination) {
+        backlogMap.remove(destination);
+    }
+
+    /**
+     * 当前限速中的队列数量
+     */
+    public int getThrottledDestinationCount() {
+        int count = 0;
+        for (Backlog backlog : backlogMap.values()) {
+            if (backlog.rate >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    private void work() {
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(intervalMs));
+            if (!running) {
+                return;
+            }
+
+            try {
+                adjust();
+            } catch (Throwable e) {
+                log.error(LOG_PRIFEX + "adjust error", e);
+            }
+        }
+    }
+
+    /**
+     * 统计一轮，调整每个队列的速率；已不存在的队列移除
+     */
+    void adjust() throws Exception {
+        long now = System.nanoTime();
+        Set<ActiveMQDestination> existed = new HashSet<ActiveMQDestination>();
+        for (ActiveMQDestination destination : broker.getDestinations()) {
+            if (!destination.isQueue() || destination.isTemporary()) {
+                continue;
+            }
+
+            for (Destination regionDestination : broker.getDestinations(destination)) {
+                if (!(regionDestination instanceof Queue)) {
+                    continue;
+                }
+
+                existed.add(destination);
+                Backlog backlog = backlogMap.get(destination);
+                if (backlog == null) {
+                    backlog = new Backlog();
+                    backlogMap.put(destination, backlog);
+                }
+                adjust(destination, backlog, regionDestination, now);
+            }
+        }
+
+        Iterator<ActiveMQDestination> iterator = backlogMap.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!existed.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void adjust(ActiveMQDestination destination, Backlog backlog, Destination regionDestination, long now) {
+        DestinationStatistics statistics = regionDestination.getDestinationStatistics();
+        long depth = statistics.getMessages().getCount();
+        long enqueues = statistics.getEnqueues().getCount();
+        long dequeues = statistics.getDequeues().getCount();
+        int memoryPercent = regionDestination.getMemoryUsage() != null ? regionDestination.getMemoryUsage().getPercentUsage() : 0;
+
+        long lastTime = backlog.lastTime;
+        long lastDepth = backlog.lastDepth;
+        double seconds = (now - lastTime) / 1e9D;
+        double enqueueRate = (enqueues - backlog.lastEnqueues) / seconds;
+        double dequeueRate = (dequeues - backlog.lastDequeues) / seconds;
+        backlog.lastTime = now;
+        backlog.lastDepth = depth;
+        backlog.lastEnqueues = enqueues;
+        backlog.lastDequeues = dequeues;
+        if (lastTime == 0) {
+            return;
+        }
+
+        double backlogSeconds = depth / Math.max(dequeueRate, 1D);
+        boolean memoryFull = memoryPercent >= maxMemoryPercent;
+        double rate = backlog.rate;
+        if (memoryFull || (backlogSeconds > maxBacklogSeconds && depth > lastDepth)) {
+            double base = rate < 0 ? enqueueRate : Math.min(rate, Math.max(enqueueRate, minRate));
+            double newRate = Math.max(minRate, base * DECREASE_FACTOR);
+            backlog.setRate(newRate, now);
+            if (rate < 0) {
+                log.info(LOG_PRIFEX + "throttle " + destination.getPhysicalName() + ", rate=" + (long) newRate + "/s,depth=" + depth
+                    + ",dequeueRate=" + (long) dequeueRate + "/s,memoryPercent=" + memoryPercent);
+            }
+        } else if (rate >= 0) {
+            if (backlogSeconds <= maxBacklogSeconds / 2D && rate >= dequeueRate) {
+                backlog.setRate(-1, now);
+                log.info(LOG_PRIFEX + "release " + destination.getPhysicalName() + ", depth=" + depth + ",dequeueRate=" + (long) dequeueRate + "/s");
+            } else {
+                backlog.setRate(rate + Math.max(minRate, dequeueRate * INCREASE_RATIO), now);
+            }
+        }
+    }
+
+    /**
+     * 队列的积压状态和限速的令牌桶，桶容量为1秒的速率
+     */
+    private static class Backlog {
+
+        /**上次统计的时间(纳秒)、积压、入队和出队数量，仅后台线程访问*/
+        private long lastTime;
+
+        private long lastDepth;
+
+        private long lastEnqueues;
+
+        private long lastDequeues;
+
+        /**限速(每秒)，小于0表示不限速*/
+        private volatile double rate = -1;
+
+        private double tokens;
+
+        private long lastRefillTime;
+
+        synchronized void setRate(double rate, long now) {
+            if (this.rate < 0) {
+                tokens = 0;
+                lastRefillTime = now;
+            }
+            this.rate = rate;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            double r = rate;
+            if (r < 0) {
+                return true;
+            }
+
+            if (now > lastRefillTime) {
+                tokens = Math.min(Math.max(r, 1D), tokens + (now - lastRefillTime) * r / 1e9D);
+                lastRefillTime = now;
+            }
+            if (tokens >= 1D) {
+                tokens -= 1D;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+/**
+ * 消息发送被sentinel拦截时的处理策略
+ * @author cdfive
+ */
+public enum BlockStrategy {
+
+    /**丢弃消息，生产者认为发送成功，兼容以前的行为*/
+    DROP,
+
+    /**拒绝消息，生产者收到ResourceAllocationException，可以重试*/
+    REJECT,
+
+    /**
+     * 延迟重试直到通过，超过maxWaitMs仍未通过则拒绝；重试在时间轮上进行，不阻塞broker的传输线程，
+     * 同步发送的生产者在重试结束后才收到响应，异步发送的生产者不等待(设置了producerWindowSize时按窗口等待)。
+     * 同时等待的消息超过maxWaitingCount、以及事务中的消息不等待，和REJECT相同
+     */
+    WAIT,
+
+    /**
+     * 转存到溢出队列(原队列名称+overflowSuffix)，由OverflowReplayer在原队列有剩余容量时移回；生产者认为发送成功。
+     * topic没有订阅者时无法转存，topic的消息和REJECT相同
+     */
+    OVERFLOW,
+
+    /**
+     * 通过activemq的延迟投递在scheduleDelayMs后投递，需要broker开启schedulerSupport；延迟投递的消息不再经过sentinel检查
+     */
+    SCHEDULE
+}
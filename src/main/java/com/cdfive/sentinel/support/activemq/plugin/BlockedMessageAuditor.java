@@ -0,0 +1,221 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.activemq.command.MessageId;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 被拦截消息的异步审计日志
+ * <p>
+ * broker的传输线程只做采样和写入有界环形缓冲区，不做字符串拼接和同步日志；缓冲区满时丢弃并计数。
+ * 单独的后台线程消费缓冲区并输出日志，每秒最多输出maxLogPerSec行，超出的只计数，在每秒结束时输出一行汇总。
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public class BlockedMessageAuditor {
+
+    /**日志前缀*/
+    private static final String LOG_PRIFEX = "[BlockedMessageAuditor]";
+
+    /**默认缓冲区大小*/
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**默认采样率，每N条被拦截的消息记录1条*/
+    public static final int DEFAULT_SAMPLE_RATE = 1;
+
+    /**默认每秒最多输出的日志行数*/
+    public static final int DEFAULT_MAX_LOG_PER_SEC = 10;
+
+    /**缓冲区为空时后台线程的等待时间(纳秒)*/
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**环形缓冲区，大小为2的幂*/
+    private final AtomicReferenceArray<Record> buffer;
+
+    private final int mask;
+
+    /**采样率*/
+    private final int sampleRate;
+
+    /**每秒最多输出的日志行数*/
+    private final int maxLogPerSec;
+
+    /**生产者写入位置*/
+    private final AtomicLong tail = new AtomicLong();
+
+    /**消费者读取位置，仅后台线程修改*/
+    private volatile long head;
+
+    /**采样计数*/
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    /**写入缓冲区的数量*/
+    private final AtomicLong recordedCount = new AtomicLong();
+
+    /**缓冲区满时丢弃的数量*/
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**输出日志的数量*/
+    private final AtomicLong loggedCount = new AtomicLong();
+
+    /**超过每秒日志行数被抑制的数量*/
+    private final AtomicLong suppressedCount = new AtomicLong();
+
+    /**后台线程*/
+    private final Thread consumerThread;
+
+    private volatile boolean running = true;
+
+    public BlockedMessageAuditor() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_SAMPLE_RATE, DEFAULT_MAX_LOG_PER_SEC);
+    }
+
+    /**
+     * @param bufferSize 缓冲区大小，向上取整为2的幂
+     * @param sampleRate 采样率，每sampleRate条被拦截的消息记录1条
+     * @param maxLogPerSec 每秒最多输出的日志行数
+     */
+    public BlockedMessageAuditor(int bufferSize, int sampleRate, int maxLogPerSec) {
+        if (bufferSize <= 0 || sampleRate <= 0 || maxLogPerSec <= 0) {
+            throw new IllegalArgumentException("bufferSize,sampleRate,maxLogPerSec必须大于0");
+        }
+
+        int capacity = Integer.highestOneBit(bufferSize);
+        if (capacity < bufferSize) {
+            capacity <<= 1;
+        }
+        this.buffer = new AtomicReferenceArray<Record>(capacity);
+        this.mask = capacity - 1;
+        this.sampleRate = sampleRate;
+        this.maxLogPerSec = maxLogPerSec;
+
+        this.consumerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "sentinel-blocked-message-auditor");
+        this.consumerThread.setDaemon(true);
+        this.consumerThread.start();
+    }
+
+    /**
+     * 记录被拦截的消息，不阻塞，缓冲区满时丢弃
+     * @param name 资源名称
+     * @param messageId 消息id
+     * @return true-已写入缓冲区 false-未采样或被丢弃
+     */
+    public boolean offer(String name, MessageId messageId) {
+        if (!running) {
+            return false;
+        }
+        if (sampleRate > 1 && sampleCounter.getAndIncrement() % sampleRate != 0) {
+            return false;
+        }
+
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= buffer.length()) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        buffer.lazySet((int) (sequence & mask), new Record(name, messageId, System.currentTimeMillis()));
+        recordedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 停止后台线程，缓冲区中剩余的记录会先输出
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(consumerThread);
+    }
+
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getLoggedCount() {
+        return loggedCount.get();
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    private void consume() {
+        long windowStart = System.currentTimeMillis();
+        int windowLogCount = 0;
+        long windowSuppressedCount = 0;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= 1000L) {
+                if (windowSuppressedCount > 0) {
+                    log.warn(LOG_PRIFEX + windowSuppressedCount + " blocked messages not logged in last second, dropped total=" + droppedCount.get());
+                }
+                windowStart = now;
+                windowLogCount = 0;
+                windowSuppressedCount = 0;
+            }
+
+            long sequence = head;
+            if (sequence == tail.get()) {
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            int index = (int) (sequence & mask);
+            Record record = buffer.get(index);
+            if (record == null) {
+                // 生产者已占位但还未写入
+                Thread.yield();
+                continue;
+            }
+            buffer.lazySet(index, null);
+            head = sequence + 1;
+
+            if (windowLogCount < maxLogPerSec) {
+                windowLogCount++;
+                loggedCount.incrementAndGet();
+                log.warn(LOG_PRIFEX + "blocked=>" + record.name + "," + record.messageId + "," + record.time);
+            } else {
+                windowSuppressedCount++;
+                suppressedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 被拦截消息的记录
+     */
+    private static class Record {
+
+        private final String name;
+
+        private final MessageId messageId;
+
+        private final long time;
+
+        Record(String name, MessageId messageId, long time) {
+            this.name = name;
+            this.messageId = messageId;
+            this.time = time;
+        }
+    }
+}
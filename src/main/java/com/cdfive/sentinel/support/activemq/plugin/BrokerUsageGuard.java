@@ -0,0 +1,209 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.activemq.usage.SystemUsage;
+import org.apache.activemq.usage.Usage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 按broker的资源使用率保护，相当于broker的系统保护规则
+ * <p>
+ * sentinel的SystemRule保护的是整个jvm的load、rt和线程数，broker真正的瓶颈是SystemUsage的内存、存储和临时存储使用率，
+ * 达到100%后broker的生产者流控会阻塞发送。后台线程每intervalMs采样一次使用率，超过水位时按类型分别记录原因；
+ * 发送时只读取volatile变量，超过水位的发送在broker流控阻塞之前被拒绝
+ * </p>
+ * <p>
+ * 和broker的流控一致：内存对所有消息检查，存储只对持久化消息检查，临时存储只对非持久化消息检查
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public class BrokerUsageGuard {
+
+    /**日志前缀*/
+    private static final String LOG_PRIFEX = "[BrokerUsageGuard]";
+
+    /**默认采样间隔(毫秒)*/
+    public static final long DEFAULT_INTERVAL_MS = 100L;
+
+    /**默认内存使用率水位(%)*/
+    public static final int DEFAULT_MEMORY_WATERMARK = 90;
+
+    /**默认存储使用率水位(%)*/
+    public static final int DEFAULT_STORE_WATERMARK = 90;
+
+    /**默认临时存储使用率水位(%)*/
+    public static final int DEFAULT_TEMP_WATERMARK = 90;
+
+    /**broker的资源使用*/
+    private final SystemUsage systemUsage;
+
+    /**采样间隔(毫秒)*/
+    private final long intervalMs;
+
+    /**内存使用率水位(%)，0表示不检查*/
+    private final int memoryWatermark;
+
+    /**存储使用率水位(%)，0表示不检查*/
+    private final int storeWatermark;
+
+    /**临时存储使用率水位(%)，0表示不检查*/
+    private final int tempWatermark;
+
+    /**最近一次采样的使用率(%)*/
+    private volatile int memoryPercent;
+
+    private volatile int storePercent;
+
+    private volatile int tempPercent;
+
+    /**内存、存储、临时存储超过水位的原因，未超过时为null*/
+    private volatile String memoryReason;
+
+    private volatile String storeReason;
+
+    private volatile String tempReason;
+
+    /**被拒绝的消息数量*/
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    /**后台线程*/
+    private final Thread sampleThread;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param systemUsage broker的资源使用
+     * @param intervalMs 采样间隔(毫秒)
+     * @param memoryWatermark 内存使用率水位(%)，0表示不检查
+     * @param storeWatermark 存储使用率水位(%)，0表示不检查
+     * @param tempWatermark 临时存储使用率水位(%)，0表示不检查
+     */
+    public BrokerUsageGuard(SystemUsage systemUsage, long intervalMs, int memoryWatermark, int storeWatermark, int tempWatermark) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("intervalMs必须大于0");
+        }
+        if (memoryWatermark < 0 || storeWatermark < 0 || tempWatermark < 0) {
+            throw new IllegalArgumentException("memoryWatermark,storeWatermark,tempWatermark不能小于0");
+        }
+
+        this.systemUsage = systemUsage;
+        this.intervalMs = intervalMs;
+        this.memoryWatermark = memoryWatermark;
+        this.storeWatermark = storeWatermark;
+        this.tempWatermark = tempWatermark;
+
+        this.sampleThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "sentinel-broker-usage-guard");
+        this.sampleThread.setDaemon(true);
+    }
+
+    public void start() {
+        sample();
+        sampleThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(sampleThread);
+    }
+
+    /**
+     * 消息超过水位的原因，如memory usage 95%&gt;=90%，未超过时为null；持久化消息检查内存和存储，非持久化消息检查内存和临时存储
+     * @param persistent 是否持久化消息
+     */
+    public String getOverloadReason(boolean persistent) {
+        String reason = memoryReason;
+        if (reason != null) {
+            return reason;
+        }
+        return persistent ? storeReason : tempReason;
+    }
+
+    /**
+     * 内存是否超过水位
+     */
+    public boolean isMemoryOverloaded() {
+        return memoryReason != null;
+    }
+
+    /**
+     * 被拒绝时计数
+     */
+    public void blocked() {
+        blockedCount.incrementAndGet();
+    }
+
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    public int getMemoryPercent() {
+        return memoryPercent;
+    }
+
+    public int getStorePercent() {
+        return storePercent;
+    }
+
+    public int getTempPercent() {
+        return tempPercent;
+    }
+
+    private void work() {
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(intervalMs));
+            if (!running) {
+                return;
+            }
+
+            try {
+                sample();
+            } catch (Throwable e) {
+                log.error(LOG_PRIFEX + "sample error", e);
+            }
+        }
+    }
+
+    /**
+     * 采样一次，超过水位和恢复时输出日志
+     */
+    void sample() {
+        memoryPercent = percent(systemUsage.getMemoryUsage());
+        storePercent = percent(systemUsage.getStoreUsage());
+        tempPercent = percent(systemUsage.getTempUsage());
+
+        String lastMemoryReason = memoryReason;
+        memoryReason = reason("memory", memoryPercent, memoryWatermark);
+        logChange(lastMemoryReason, memoryReason, "sends will be rejected");
+        String lastStoreReason = storeReason;
+        storeReason = reason("store", storePercent, storeWatermark);
+        logChange(lastStoreReason, storeReason, "persistent sends will be rejected");
+        String lastTempReason = tempReason;
+        tempReason = reason("temp", tempPercent, tempWatermark);
+        logChange(lastTempReason, tempReason, "non-persistent sends will be rejected");
+    }
+
+    private static String reason(String type, int percent, int watermark) {
+        return watermark > 0 && percent >= watermark ? type + " usage " + percent + "%>=" + watermark + "%" : null;
+    }
+
+    private void logChange(String lastReason, String reason, String effect) {
+        if (reason != null && lastReason == null) {
+            log.warn(LOG_PRIFEX + "overload, " + reason + ", " + effect);
+        } else if (reason == null && lastReason != null) {
+            log.info(LOG_PRIFEX + "recovered from " + lastReason + ", memory=" + memoryPercent + "%,store=" + storePercent + "%,temp=" + tempPercent + "%");
+        }
+    }
+
+    private static int percent(Usage<?> usage) {
+        return usage != null ? usage.getPercentUsage() : 0;
+    }
+}
@@ -0,0 +1,20 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import org.apache.activemq.broker.ConnectionContext;
+
+/**
+ * 从生产者的连接解析sentinel的来源(origin)，规则的limitApp按来源区分生产者
+ * <p>
+ * 每个连接只解析一次，结果由SentinelBrokerFilter按连接缓存，连接断开时移除
+ * </p>
+ * @author cdfive
+ */
+public interface ConnectionOriginParser {
+
+    /**
+     * 解析连接的来源
+     * @param context 连接上下文
+     * @return 来源，为null或空字符串表示没有来源
+     */
+    String parseOrigin(ConnectionContext context);
+}
@@ -0,0 +1,256 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import com.alibaba.csp.sentinel.node.ClusterNode;
+import com.cdfive.sentinel.support.activemq.DestinationResource;
+import org.apache.activemq.broker.region.PrefetchSubscription;
+import org.apache.activemq.broker.region.Subscription;
+import org.apache.activemq.broker.region.TopicSubscription;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ConsumerInfo;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 一个消费者已推送但还未确认的消息，按推送顺序记录
+ * <p>
+ * 推送时资源的entry立即退出，只做准入检查；推送后给资源的ClusterNode的线程数加1，确认时减1并记录推送到确认的耗时，
+ * 线程数即未确认的消息数量，按线程数的流控规则可以限制推送中的消息数量，按RT的降级规则反映消费者的处理耗时
+ * </p>
+ * <p>
+ * 推送不能拒绝，被拦截时进入限速：订阅的预取数量置为0，broker不再推送给该消费者(推送线程不等待，消息留在队列中)；
+ * 之后由后台申请令牌，预取数量=未确认的数量+令牌数，消费者只能收到申请到令牌的消息，确认释放的容量也不用于推送。
+ * 积压消费完或令牌不再受限时还原预取数量
+ * </p>
+ * @author cdfive
+ */
+class DispatchWindow {
+
+    /**推送中的消息，按推送顺序*/
+    private final Deque<Dispatched> dispatchedQueue = new ArrayDeque<Dispatched>();
+
+    /**消费者的订阅，为null时不能限速*/
+    private final Subscription subscription;
+
+    /**订阅原来的预取数量*/
+    private final int prefetchSize;
+
+    /**限速中*/
+    private boolean throttled;
+
+    /**限速时被拦截的资源和队列，按该资源申请令牌*/
+    private DestinationResource throttledResource;
+
+    private ActiveMQDestination throttledDestination;
+
+    /**限速中已申请、还未推送的令牌数*/
+    private int permits;
+
+    /**消费者已关闭*/
+    private boolean closed;
+
+    DispatchWindow() {
+        this(null);
+    }
+
+    /**
+     * @param subscription 消费者的订阅，为null时不能限速
+     */
+    DispatchWindow(Subscription subscription) {
+        this.subscription = subscription;
+        this.prefetchSize = subscription != null ? subscription.getConsumerInfo().getPrefetchSize() : 0;
+    }
+
+    /**
+     * 推送了一条消息
+     * @param clusterNode 资源的ClusterNode，为null表示没有通过检查，只占位
+     * @param time 推送时间(毫秒)
+     */
+    synchronized void dispatched(ClusterNode clusterNode, long time) {
+        if (clusterNode != null) {
+            clusterNode.increaseThreadNum();
+        }
+        dispatchedQueue.addLast(new Dispatched(clusterNode, time));
+    }
+
+    /**
+     * 确认前调用，限速中确认释放的容量不用于推送，预取数量同步减少
+     * @param count 消息数量
+     */
+    synchronized void beforeAcknowledge(int count) {
+        if (throttled && !closed) {
+            ConsumerInfo info = subscription.getConsumerInfo();
+            info.setPrefetchSize(Math.max(0, info.getPrefetchSize() - count));
+        }
+    }
+
+    /**
+     * 确认了最早推送的count条消息
+     * @param count 消息数量
+     * @param now 当前时间(毫秒)
+     */
+    synchronized void acknowledged(int count, long now) {
+        for (int i = 0; i < count; i++) {
+            Dispatched dispatched = dispatchedQueue.pollFirst();
+            if (dispatched == null) {
+                return;
+            }
+            if (dispatched.clusterNode != null) {
+                // 推送时entry退出已计数成功，这里只累加耗时
+                dispatched.clusterNode.addRtAndSuccess(now - dispatched.time, 0);
+                dispatched.clusterNode.decreaseThreadNum();
+            }
+        }
+    }
+
+    /**
+     * 按订阅实际推送中的消息数量释放多余的记录，从最早推送的开始；订阅在其他确认中移除的消息(如客户端对推送后过期的消息发送的DELIVERED确认)
+     * 不会再有对应的确认，不释放时资源的线程数一直不减少
+     */
+    synchronized void trim() {
+        if (subscription == null) {
+            return;
+        }
+        // 订阅先记录推送再调用dispatched，正常情况下这里的记录数不超过订阅推送中的数量
+        int size = subscription.getDispatchedQueueSize();
+        while (dispatchedQueue.size() > size) {
+            Dispatched dispatched = dispatchedQueue.pollFirst();
+            if (dispatched.clusterNode != null) {
+                dispatched.clusterNode.decreaseThreadNum();
+            }
+        }
+    }
+
+    /**
+     * 推送被拦截，进入限速，预取数量置为0；预取数量为0(pull)的消费者不限速
+     * @param resource 被拦截的资源
+     * @param destination 被拦截的队列
+     * @return 是否新进入限速，需要安排申请令牌
+     */
+    synchronized boolean throttle(DestinationResource resource, ActiveMQDestination destination) {
+        if (closed || prefetchSize <= 0) {
+            return false;
+        }
+        permits = 0;
+        throttledResource = resource;
+        throttledDestination = destination;
+        // 只修改预取数量，不触发推送；已交给连接推送的消息不受影响
+        subscription.getConsumerInfo().setPrefetchSize(0);
+        if (throttled) {
+            return false;
+        }
+        throttled = true;
+        return true;
+    }
+
+    /**
+     * 取走一个限速中申请的令牌
+     * @return 是否有令牌
+     */
+    synchronized boolean takePermit() {
+        if (!throttled || permits <= 0) {
+            return false;
+        }
+        permits--;
+        return true;
+    }
+
+    /**
+     * 限速时被拦截的资源，未限速或消费者已关闭时为null
+     */
+    synchronized DestinationResource getThrottledResource() {
+        return throttled && !closed ? throttledResource : null;
+    }
+
+    synchronized ActiveMQDestination getThrottledDestination() {
+        return throttledDestination;
+    }
+
+    /**
+     * 限速中已申请、还未推送的令牌数
+     */
+    synchronized int getPermits() {
+        return permits;
+    }
+
+    Subscription getSubscription() {
+        return subscription;
+    }
+
+    int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    /**
+     * 补充令牌，预取数量=未确认的数量+令牌数，由订阅推送对应数量的消息
+     * @param count 令牌数
+     */
+    void grant(int count) {
+        int size;
+        synchronized (this) {
+            if (!throttled || closed) {
+                return;
+            }
+            permits += count;
+            size = Math.min(prefetchSize, subscription.getDispatchedQueueSize() + permits);
+        }
+        updatePrefetchSize(size);
+    }
+
+    /**
+     * 解除限速，还原预取数量
+     */
+    void release() {
+        synchronized (this) {
+            if (!throttled) {
+                return;
+            }
+            throttled = false;
+            permits = 0;
+            throttledResource = null;
+            throttledDestination = null;
+            if (closed) {
+                return;
+            }
+        }
+        updatePrefetchSize(prefetchSize);
+    }
+
+    /**
+     * 修改预取数量并触发推送，不持有锁
+     */
+    private void updatePrefetchSize(int size) {
+        if (subscription instanceof PrefetchSubscription) {
+            ((PrefetchSubscription) subscription).setPrefetchSize(size);
+        } else if (subscription instanceof TopicSubscription) {
+            ((TopicSubscription) subscription).setPrefetchSize(size);
+        } else {
+            subscription.getConsumerInfo().setPrefetchSize(size);
+        }
+    }
+
+    /**
+     * 消费者关闭，释放所有推送中的消息
+     */
+    synchronized void clear() {
+        closed = true;
+        Dispatched dispatched;
+        while ((dispatched = dispatchedQueue.pollFirst()) != null) {
+            if (dispatched.clusterNode != null) {
+                dispatched.clusterNode.decreaseThreadNum();
+            }
+        }
+    }
+
+    private static class Dispatched {
+
+        private final ClusterNode clusterNode;
+
+        private final long time;
+
+        Dispatched(ClusterNode clusterNode, long time) {
+            this.clusterNode = clusterNode;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import com.alibaba.csp.sentinel.slots.block.RuleConstant;
+import com.alibaba.csp.sentinel.slots.block.flow.FlowRule;
+import com.cdfive.sentinel.support.activemq.DestinationPatternManager;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * 消息匀速发送器
+ * <p>
+ * Sentinel的匀速排队(controlBehavior=2)由RateLimiterController在调用线程上sleep实现，在broker中会阻塞传输线程，
+ * 共用该线程的所有生产者都会被拖慢。开启后从流量控制规则中取出队列发送资源(_send)的匀速排队规则由这里计算每条消息需要的延迟，
+ * 其余规则仍加载到FlowRuleManager；延迟发送由SentinelBrokerFilter放入PacingTimerWheel执行，传输线程不等待。
+ * 取出的规则不再由sentinel检查，事务中的消息不参与匀速发送，提交时也不受这些规则限制
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public class MessagePacer {
+
+    /**日志前缀*/
+    private static final String LOG_PRIFEX = "[MessagePacer]";
+
+    /**资源名称后缀，只处理发送资源*/
+    private static final String SEND = "_send";
+
+    /**匀速排队规则在DestinationPatternManager中的类型*/
+    private static final String TYPE_PACE = "pace";
+
+    /**资源名称=>匀速状态*/
+    private final Map<String, Pace> paceMap = new ConcurrentHashMap<String, Pace>();
+
+    /**
+     * 取出匀速排队规则，返回其余规则
+     * <p>
+     * 规则变化时保留已有资源的排队状态，只更新速率和最长排队时间；同一资源有多条匀速排队规则时取count最小的
+     * </p>
+     * @param rules 流量控制规则
+     * @return 需要加载到FlowRuleManager的规则
+     */
+    public List<FlowRule> loadRules(List<FlowRule> rules) {
+        if (rules == null) {
+            paceMap.clear();
+            DestinationPatternManager.loadResources(TYPE_PACE, paceMap.keySet());
+            return null;
+        }
+
+        List<FlowRule> otherRules = new ArrayList<FlowRule>(rules.size());
+        Map<String, FlowRule> paceRuleMap = new HashMap<String, FlowRule>();
+        for (FlowRule rule : rules) {
+            if (!isPaceRule(rule)) {
+                otherRules.add(rule);
+                continue;
+            }
+
+            FlowRule exist = paceRuleMap.get(rule.getResource());
+            if (exist == null || rule.getCount() < exist.getCount()) {
+                paceRuleMap.put(rule.getResource(), rule);
+            }
+        }
+
+        for (Map.Entry<String, FlowRule> entry : paceRuleMap.entrySet()) {
+            FlowRule rule = entry.getValue();
+            Pace pace = paceMap.get(entry.getKey());
+            if (pace == null) {
+                paceMap.put(entry.getKey(), new Pace(rule.getCount(), rule.getMaxQueueingTimeMs()));
+            } else {
+                pace.update(rule.getCount(), rule.getMaxQueueingTimeMs());
+            }
+        }
+        paceMap.keySet().retainAll(paceRuleMap.keySet());
+        // 匀速排队规则不加载到FlowRuleManager，资源名称单独加入，规则可以使用通配符
+        DestinationPatternManager.loadResources(TYPE_PACE, paceRuleMap.keySet());
+
+        log.info(LOG_PRIFEX + "loadRules, paceRules=" + paceRuleMap.values());
+        return otherRules;
+    }
+
+    /**
+     * 资源的匀速状态
+     * @param name 资源名称
+     * @return null-该资源没有匀速排队规则
+     */
+    public Pace getPace(String name) {
+        return paceMap.get(name);
+    }
+
+    private boolean isPaceRule(FlowRule rule) {
+        return rule != null
+            && rule.getControlBehavior() == RuleConstant.CONTROL_BEHAVIOR_RATE_LIMITER
+            && rule.getGrade() == RuleConstant.FLOW_GRADE_QPS
+            && (rule.getLimitApp() == null || RuleConstant.LIMIT_APP_DEFAULT.equals(rule.getLimitApp()))
+            && rule.getResource() != null && rule.getResource().endsWith(SEND);
+    }
+
+    /**
+     * 单个资源的匀速状态，算法和RateLimiterController相同：每条消息间隔1000/count毫秒，排队时间超过maxQueueingTimeMs则拦截
+     */
+    public static class Pace {
+
+        /**每条消息的间隔(毫秒)*/
+        private volatile long costTimeMs;
+
+        /**最长排队时间(毫秒)*/
+        private volatile long maxQueueingTimeMs;
+
+        /**最后一条消息的发送时间，受this保护*/
+        private long latestPassedTime = -1;
+
+        /**已排队但还未发送的消息数量，受this保护*/
+        private int pending;
+
+        /**延迟发送的串行执行器，受this保护，第一次延迟发送时创建*/
+        private SerialExecutor sendExecutor;
+
+        Pace(double count, int maxQueueingTimeMs) {
+            update(count, maxQueueingTimeMs);
+        }
+
+        void update(double count, int maxQueueingTimeMs) {
+            this.costTimeMs = count <= 0 ? Long.MAX_VALUE : Math.round(1000.0D / count);
+            this.maxQueueingTimeMs = maxQueueingTimeMs;
+        }
+
+        /**
+         * 申请发送一条消息，调用方需持有this锁，以便申请和放入时间轮的顺序一致
+         * @param now 当前时间(毫秒)
+         * @return 需要延迟的时间(毫秒)，-1表示超过最长排队时间被拦截
+         */
+        long acquire(long now) {
+            long cost = costTimeMs;
+            if (cost == Long.MAX_VALUE) {
+                return -1;
+            }
+
+            long expectedTime = latestPassedTime + cost;
+            if (expectedTime <= now) {
+                latestPassedTime = now;
+                return 0;
+            }
+
+            long waitTime = expectedTime - now;
+            if (waitTime > maxQueueingTimeMs) {
+                return -1;
+            }
+            latestPassedTime = expectedTime;
+            return waitTime;
+        }
+
+        /**
+         * 是否有排队中的消息，调用方需持有this锁
+         */
+        boolean hasPending() {
+            return pending > 0;
+        }
+
+        /**
+         * 延迟发送的执行器，到期的消息在共用线程池中按放入时间轮的顺序串行发送
+         * @param executor 共用的线程池
+         */
+        synchronized Executor getSendExecutor(Executor executor) {
+            if (sendExecutor == null) {
+                sendExecutor = new SerialExecutor(executor);
+            }
+            return sendExecutor;
+        }
+
+        synchronized void incrementPending() {
+            pending++;
+        }
+
+        synchronized void decrementPending() {
+            pending--;
+        }
+    }
+}
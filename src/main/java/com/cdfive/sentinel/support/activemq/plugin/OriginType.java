@@ -0,0 +1,50 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import org.apache.activemq.broker.Connection;
+import org.apache.activemq.broker.ConnectionContext;
+
+/**
+ * 内置的来源解析方式
+ * @author cdfive
+ */
+public enum OriginType implements ConnectionOriginParser {
+
+    /**连接的clientId*/
+    CLIENT_ID {
+        @Override
+        public String parseOrigin(ConnectionContext context) {
+            return context.getClientId();
+        }
+    },
+
+    /**连接的远程地址，只取ip，如tcp:///192.168.1.10:51234 => 192.168.1.10*/
+    REMOTE_ADDRESS {
+        @Override
+        public String parseOrigin(ConnectionContext context) {
+            Connection connection = context.getConnection();
+            if (connection == null || connection.getRemoteAddress() == null) {
+                return null;
+            }
+
+            String address = connection.getRemoteAddress();
+            int index = address.indexOf("://");
+            if (index >= 0) {
+                address = address.substring(index + 3);
+            }
+            index = address.lastIndexOf(':');
+            if (index > 0) {
+                address = address.substring(0, index);
+            }
+            // tcp连接的地址为InetAddress.toString()，格式为主机名/ip
+            return address.substring(address.lastIndexOf('/') + 1);
+        }
+    },
+
+    /**认证插件(如simpleAuthenticationPlugin、jaasAuthenticationPlugin)认证后的用户名*/
+    USER_NAME {
+        @Override
+        public String parseOrigin(ConnectionContext context) {
+            return context.getUserName();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import com.alibaba.csp.sentinel.Entry;
+import com.alibaba.csp.sentinel.context.ContextUtil;
+import com.alibaba.csp.sentinel.slots.block.BlockException;
+import com.cdfive.sentinel.support.activemq.DestinationResource;
+import com.cdfive.sentinel.support.activemq.DestinationResourceCache;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.activemq.broker.Broker;
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.MessageReference;
+import org.apache.activemq.broker.region.MessageReferenceFilter;
+import org.apache.activemq.broker.region.Queue;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.util.BrokerSupport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 溢出队列的回放
+ * <p>
+ * 后台线程每intervalMs扫描一次broker中名称以overflowSuffix结尾的队列，逐条申请原队列的发送资源，通过的消息移回原队列，
+ * 被拦截则停止本轮该队列的回放；回放的速度因此跟随原队列规则的剩余容量。移回使用的ConnectionContext的broker是
+ * SentinelBrokerFilter的下一个broker，回放的消息不会再次经过过滤器。broker重启后已有的溢出队列会继续回放。
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public class OverflowReplayer {
+
+    /**日志前缀*/
+    private static final String LOG_PRIFEX = "[OverflowReplayer]";
+
+    /**默认回放间隔(毫秒)*/
+    public static final long DEFAULT_INTERVAL_MS = 1000L;
+
+    /**默认每个溢出队列每轮最多回放的数量*/
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**SentinelBrokerFilter的下一个broker*/
+    private final Broker broker;
+
+    /**原队列对应的资源缓存*/
+    private final DestinationResourceCache resourceCache;
+
+    /**溢出队列名称后缀*/
+    private final String overflowSuffix;
+
+    /**回放间隔(毫秒)*/
+    private final long intervalMs;
+
+    /**每个溢出队列每轮最多回放的数量*/
+    private final int batchSize;
+
+    /**回放的消息数量*/
+    private final AtomicLong replayedCount = new AtomicLong();
+
+    /**后台线程*/
+    private final Thread replayThread;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param broker SentinelBrokerFilter的下一个broker
+     * @param resourceCache 原队列对应的资源缓存
+     * @param overflowSuffix 溢出队列名称后缀
+     * @param intervalMs 回放间隔(毫秒)
+     * @param batchSize 每个溢出队列每轮最多回放的数量
+     */
+    public OverflowReplayer(Broker broker, DestinationResourceCache resourceCache, String overflowSuffix, long intervalMs, int batchSize) {
+        if (intervalMs <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("intervalMs,batchSize必须大于0");
+        }
+
+        this.broker = broker;
+        this.resourceCache = resourceCache;
+        this.overflowSuffix = overflowSuffix;
+        this.intervalMs = intervalMs;
+        this.batchSize = batchSize;
+
+        this.replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "sentinel-overflow-replayer");
+        this.replayThread.setDaemon(true);
+    }
+
+    public void start() {
+        replayThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(replayThread);
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    private void work() {
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(intervalMs));
+            if (!running) {
+                return;
+            }
+
+            try {
+                replay();
+            } catch (Throwable e) {
+                log.error(LOG_PRIFEX + "replay error", e);
+            }
+        }
+    }
+
+    /**
+     * 回放一轮
+     */
+    void replay() throws Exception {
+        ConnectionContext context = null;
+        for (ActiveMQDestination destination : broker.getDestinations()) {
+            if (!destination.isQueue() || !destination.getPhysicalName().endsWith(overflowSuffix)) {
+                continue;
+            }
+
+            String physicalName = destination.getPhysicalName();
+            ActiveMQQueue original = new ActiveMQQueue(physicalName.substring(0, physicalName.length() - overflowSuffix.length()));
+            for (Destination regionDestination : broker.getDestinations(destination)) {
+                if (!(regionDestination instanceof Queue)
+                    || regionDestination.getDestinationStatistics().getMessages().getCount() == 0) {
+                    continue;
+                }
+
+                if (context == null) {
+                    context = BrokerSupport.getConnectionContext(broker).copy();
+                    context.setBroker(broker);
+                }
+                int count = ((Queue) regionDestination).moveMatchingMessagesTo(context,
+                    new AdmissionFilter(resourceCache.get(original)), original, batchSize);
+                if (count > 0) {
+                    replayedCount.addAndGet(count);
+                    log.info(LOG_PRIFEX + "replayed " + count + " messages from " + physicalName);
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐条申请原队列的发送资源，被拦截后本轮不再申请
+     */
+    private static class AdmissionFilter implements MessageReferenceFilter {
+
+        private final DestinationResource resource;
+
+        private boolean blocked;
+
+        AdmissionFilter(DestinationResource resource) {
+            this.resource = resource;
+        }
+
+        @Override
+        public boolean evaluate(ConnectionContext context, MessageReference messageReference) {
+            if (blocked) {
+                return false;
+            }
+            if (resource == null) {
+                return true;
+            }
+
+            Entry entry = null;
+            try {
+                ContextUtil.enter(resource.getContextName());
+                entry = resource.entry();
+                return true;
+            } catch (BlockException ex) {
+                blocked = true;
+                return false;
+            } finally {
+                if (entry != null) {
+                    entry.exit();
+                }
+                ContextUtil.exit();
+            }
+        }
+    }
+}
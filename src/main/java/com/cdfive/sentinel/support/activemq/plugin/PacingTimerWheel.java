@@ -0,0 +1,181 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 匀速发送和WAIT策略重试消息的时间轮
+ * <p>
+ * 单个后台线程每tickMs推进一格，到期的任务在该线程上按加入顺序执行，到期时间相同的任务保持加入的先后顺序；
+ * 加入任务的线程只写入无锁队列，不会被阻塞。任务只应转交给其他线程执行(如发送消息)，长时间的任务会推迟后续任务。
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public class PacingTimerWheel {
+
+    /**日志前缀*/
+    private static final String LOG_PRIFEX = "[PacingTimerWheel]";
+
+    /**默认每格的时间(毫秒)*/
+    public static final long DEFAULT_TICK_MS = 1L;
+
+    /**默认格数*/
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**每格的时间(纳秒)*/
+    private final long tickNanos;
+
+    /**格，仅后台线程访问*/
+    private final List<Queue<Timeout>> wheel;
+
+    private final int mask;
+
+    /**新加入的任务，后台线程每格转移到对应的格中*/
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    /**后台线程*/
+    private final Thread workerThread;
+
+    /**启动时间(纳秒)*/
+    private final long startTime;
+
+    private volatile boolean running = true;
+
+    public PacingTimerWheel() {
+        this(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE, "sentinel-pacing-timer-wheel");
+    }
+
+    /**
+     * @param tickMs 每格的时间(毫秒)
+     * @param wheelSize 格数，向上取整为2的幂
+     * @param threadName 后台线程名称
+     */
+    public PacingTimerWheel(long tickMs, int wheelSize, String threadName) {
+        if (tickMs <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMs,wheelSize必须大于0");
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new ArrayList<Queue<Timeout>>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new LinkedList<Timeout>());
+        }
+        this.mask = size - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.startTime = System.nanoTime();
+
+        this.workerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, threadName);
+        this.workerThread.setDaemon(true);
+        this.workerThread.start();
+    }
+
+    /**
+     * 延迟执行任务
+     * @param delayMs 延迟时间(毫秒)
+     * @param task 任务
+     */
+    public void schedule(long delayMs, Runnable task) {
+        if (!running) {
+            throw new IllegalStateException("PacingTimerWheel已停止");
+        }
+        newTimeouts.add(new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs) - startTime, task));
+    }
+
+    /**
+     * 停止后台线程，未执行的任务被丢弃
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(workerThread);
+    }
+
+    private void work() {
+        long tick = 0;
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(sleepNanos);
+                continue;
+            }
+
+            transferNewTimeouts(tick);
+            expire(wheel.get((int) (tick & mask)));
+            tick++;
+        }
+
+        int remaining = newTimeouts.size();
+        for (Queue<Timeout> bucket : wheel) {
+            remaining += bucket.size();
+        }
+        if (remaining > 0) {
+            log.warn(LOG_PRIFEX + "stopped, " + remaining + " tasks not executed");
+        }
+    }
+
+    /**
+     * 新加入的任务按顺序转移到对应的格中，已过期的任务放在当前格
+     */
+    private void transferNewTimeouts(long tick) {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            long targetTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (targetTick - tick) / wheel.size();
+            wheel.get((int) (targetTick & mask)).add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                continue;
+            }
+
+            iterator.remove();
+            try {
+                timeout.task.run();
+            } catch (Throwable e) {
+                log.error(LOG_PRIFEX + "task exception", e);
+            }
+        }
+    }
+
+    /**
+     * 延迟任务
+     */
+    private static class Timeout {
+
+        /**到期时间，相对于startTime(纳秒)*/
+        private final long deadline;
+
+        private final Runnable task;
+
+        /**剩余圈数*/
+        private long remainingRounds;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
@@ -2,17 +2,117 @@ package com.cdfive.sentinel.support.activemq.plugin;
 
 import com.alibaba.csp.sentinel.Entry;
 import com.alibaba.csp.sentinel.EntryType;
-import com.alibaba.csp.sentinel.SphU;
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
 import com.alibaba.csp.sentinel.context.ContextUtil;
+import com.alibaba.csp.sentinel.node.ClusterNode;
+import com.alibaba.csp.sentinel.property.PropertyListener;
+import com.alibaba.csp.sentinel.property.SentinelProperty;
 import com.alibaba.csp.sentinel.slots.block.BlockException;
+import com.alibaba.csp.sentinel.slots.block.RuleConstant;
+import com.alibaba.csp.sentinel.slots.block.flow.FlowRule;
+import com.alibaba.csp.sentinel.slots.clusterbuilder.ClusterBuilderSlot;
+import com.cdfive.sentinel.support.activemq.DestinationResource;
+import com.cdfive.sentinel.support.activemq.DestinationResourceCache;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.activemq.ScheduledMessage;
+import org.apache.activemq.advisory.AdvisorySupport;
 import org.apache.activemq.broker.Broker;
 import org.apache.activemq.broker.BrokerFilter;
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.ConsumerBrokerExchange;
 import org.apache.activemq.broker.ProducerBrokerExchange;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.Subscription;
+import org.apache.activemq.broker.region.TopicSubscription;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.ConnectionInfo;
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.command.ConsumerInfo;
+import org.apache.activemq.command.ExceptionResponse;
 import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageDispatch;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.Response;
+import org.apache.activemq.command.TransactionId;
+
+import javax.jms.ResourceAllocationException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Sentinel的activemq broker过滤器
+ * <p>
+ * 每条消息不输出日志，通过和拦截的数量只计数；被拦截消息的审计日志通过BlockedMessageAuditor异步采样输出
+ * </p>
+ * <p>
+ * 被拦截时按blockStrategy处理：DROP-丢弃，REJECT-拒绝给生产者，WAIT-延迟重试直到通过或超过maxWaitMs后拒绝，
+ * OVERFLOW-转存到溢出队列后由OverflowReplayer回放(topic拒绝)，SCHEDULE-延迟投递
+ * </p>
+ * <p>
+ * WAIT策略不在传输线程上等待(等待会阻塞同一连接的所有命令)：被拦截的消息放入生产者的等待队列，由waitTimerWheel每waitIntervalMs
+ * 转交sendExecutor按顺序重试，生产者有等待中的消息时后续消息排在后面，保持发送顺序；同步发送的生产者在重试结束后才收到响应，和匀速发送相同；
+ * 同时等待的消息超过maxWaitingCount后直接拒绝。
+ * 事务中的消息在提交时检查，不等待，被拦截时和REJECT相同
+ * </p>
+ * <p>
+ * 设置messagePacer后，匀速排队规则的消息不在传输线程上等待：需要延迟的消息放入pacingTimerWheel，到期后转交sendExecutor再检查规则并发送，
+ * 时间轮的线程只推进时间、不执行发送；同一队列的消息串行、按到达顺序发送；同步发送的生产者在实际发送后才收到响应。
+ * </p>
+ * <p>
+ * 开启bytesFlowEnabled后，发送时在资源队列名称_send之后再按消息大小申请资源队列名称_bytes，令牌数=消息大小/bytesPerToken(向上取整)，
+ * QPS规则的count即每秒的字节数/bytesPerToken；被拦截时和_send资源一样按blockStrategy处理；
+ * 令牌数超过QPS规则count的大消息截断为count，每个统计窗口最多通过一条(需调用register2Property监听流控规则)
+ * </p>
+ * <p>
+ * 配置paramFlowKey后，资源队列名称_send按消息的属性做热点参数限流(ParamFlowRule，paramIdx=0)：clientId-生产者连接的clientId，
+ * JMSXGroupID-消息分组，其他值为消息的同名属性；每个参数值单独计数，参数值的计数由sentinel按LRU淘汰，内存有上限。属性不存在时不检查热点参数
+ * </p>
+ * <p>
+ * 每个队列一个资源，同一类资源共用一个上下文；临时队列、advisory topic以及超过缓存上限的新队列归并为共用的资源，
+ * 资源和上下文的数量不随队列增长(见DestinationResourceCache)；excludedDestinations匹配的队列不检查
+ * </p>
+ * <p>
+ * 设置originParser后，发送时按生产者的连接解析来源作为上下文的origin，规则的limitApp即可区分生产者；来源按连接缓存，连接断开时移除
+ * </p>
+ * <p>
+ * 开启backlogThrottleEnabled后，BacklogThrottler按队列的积压、出入队速率和内存使用率自适应限速(AIMD)，超过速率的消息按blockStrategy处理；
+ * 限速在sentinel规则之前检查，WAIT策略和被规则拦截一样放入等待队列，重试时重新检查限速；匀速发送的消息被限速时不等待，事务中的消息不检查
+ * </p>
+ * <p>
+ * 开启usageProtectionEnabled后，BrokerUsageGuard定时采样broker的内存、存储和临时存储使用率，超过水位时在broker的生产者流控阻塞之前拒绝发送；
+ * 和broker的流控一致，存储只对持久化消息检查，临时存储只对非持久化消息检查。该检查在所有检查之前，存储或临时存储超过水位时WAIT策略放入等待队列，
+ * 重试时重新检查直到恢复；内存超过水位时不等待(等待的消息占用堆内存)，事务中的消息也检查，不等待
+ * </p>
+ * <p>
+ * 事务中的消息发送时只按资源计数，提交时对每个资源用一次entry(count)整体申请，提交后一次释放；任一资源被拦截则回滚整个事务，
+ * DROP策略生产者认为提交成功，其他策略生产者收到ResourceAllocationException。两阶段提交在prepare时检查。
+ * 事务中的消息不参与匀速发送，匀速排队规则已从FlowRuleManager中取出，提交时也不受其限制(见MessagePacer)。
+ * </p>
+ * <p>
+ * 开启dispatchThrottleEnabled后，broker推送消息给消费者前检查资源队列名称_dispatch，推送不能拒绝，被拦截时这条消息仍推送，
+ * 但该消费者进入限速：预取数量置为0暂停后续推送，推送线程不等待；之后dispatchTimerWheel每waitIntervalMs按等待的消息数量申请令牌，
+ * 预取数量=未确认的数量+令牌数，超过dispatchMaxWaitMs申请不到时放行一条，积压消费完后还原预取数量(见DispatchWindow)；
+ * 推送后到确认前计入资源的线程数，按线程数的规则可以限制未确认的消息数量，不依赖客户端织入MessageListenerAspect
+ * </p>
  * @author cdfive
  */
 @Slf4j
@@ -24,21 +124,923 @@ public class SentinelBrokerFilter extends BrokerFilter {
     /**资源名称后缀，资源名称=队列名称_send*/
     private static final String SEND = "_send";
 
+    /**字节资源名称后缀，资源名称=队列名称_bytes*/
+    private static final String BYTES = "_bytes";
+
+    /**推送资源名称后缀，资源名称=队列名称_dispatch*/
+    private static final String DISPATCH = "_dispatch";
+
+    /**默认WAIT策略最长等待时间(毫秒)*/
+    public static final long DEFAULT_MAX_WAIT_MS = 1000L;
+
+    /**默认WAIT策略重试间隔(毫秒)*/
+    public static final long DEFAULT_WAIT_INTERVAL_MS = 10L;
+
+    /**默认WAIT策略同时等待的最大消息数量*/
+    public static final int DEFAULT_MAX_WAITING_COUNT = 10000;
+
+    /**延迟发送和WAIT策略重试的线程数*/
+    public static final int DEFAULT_SEND_THREADS = 4;
+
+    /**热点参数：生产者连接的clientId*/
+    public static final String PARAM_KEY_CLIENT_ID = "clientId";
+
+    /**热点参数：消息分组JMSXGroupID*/
+    public static final String PARAM_KEY_GROUP_ID = "JMSXGroupID";
+
+    /**默认每个令牌对应的字节数*/
+    public static final int DEFAULT_BYTES_PER_TOKEN = 1024;
+
+    /**默认推送限速中最长等待令牌的时间(毫秒)*/
+    public static final long DEFAULT_DISPATCH_MAX_WAIT_MS = 5000L;
+
+    /**默认溢出队列名称后缀*/
+    public static final String DEFAULT_OVERFLOW_SUFFIX = ".sentinel.overflow";
+
+    /**默认SCHEDULE策略延迟投递时间(毫秒)*/
+    public static final long DEFAULT_SCHEDULE_DELAY_MS = 1000L;
+
+    /**队列对应的资源缓存*/
+    private final DestinationResourceCache sendResourceCache = new DestinationResourceCache(SEND, EntryType.OUT);
+
+    /**队列对应的字节资源缓存*/
+    private final DestinationResourceCache bytesResourceCache = new DestinationResourceCache(BYTES, EntryType.OUT);
+
+    /**队列对应的推送资源缓存*/
+    private final DestinationResourceCache dispatchResourceCache = new DestinationResourceCache(DISPATCH, EntryType.OUT);
+
+    /**通过的消息数量*/
+    private final AtomicLong passCount = new AtomicLong();
+
+    /**被拦截的消息数量*/
+    private final AtomicLong blockCount = new AtomicLong();
+
+    /**被拦截消息的审计日志，为null则不记录*/
+    @Getter
+    @Setter
+    private BlockedMessageAuditor blockedMessageAuditor;
+
+    /**被拦截时的处理策略，默认DROP*/
+    @Getter
+    @Setter
+    private volatile BlockStrategy blockStrategy = BlockStrategy.DROP;
+
+    /**WAIT策略最长等待时间(毫秒)*/
+    @Getter
+    @Setter
+    private volatile long maxWaitMs = DEFAULT_MAX_WAIT_MS;
+
+    /**WAIT策略重试间隔(毫秒)*/
+    @Getter
+    @Setter
+    private volatile long waitIntervalMs = DEFAULT_WAIT_INTERVAL_MS;
+
+    /**WAIT策略同时等待的最大消息数量，超过后直接拒绝*/
+    @Getter
+    @Setter
+    private volatile int maxWaitingCount = DEFAULT_MAX_WAITING_COUNT;
+
+    /**OVERFLOW策略溢出队列名称后缀，溢出队列名称=队列名称+后缀*/
+    @Getter
+    @Setter
+    private volatile String overflowSuffix = DEFAULT_OVERFLOW_SUFFIX;
+
+    /**OVERFLOW策略回放间隔(毫秒)*/
+    @Getter
+    @Setter
+    private long replayIntervalMs = OverflowReplayer.DEFAULT_INTERVAL_MS;
+
+    /**OVERFLOW策略每个溢出队列每轮最多回放的数量*/
+    @Getter
+    @Setter
+    private int replayBatchSize = OverflowReplayer.DEFAULT_BATCH_SIZE;
+
+    /**SCHEDULE策略延迟投递时间(毫秒)*/
+    @Getter
+    @Setter
+    private volatile long scheduleDelayMs = DEFAULT_SCHEDULE_DELAY_MS;
+
+    /**热点参数限流的参数，clientId、JMSXGroupID或消息的属性名称，为null则不检查热点参数*/
+    @Getter
+    @Setter
+    private volatile String paramFlowKey;
+
+    /**是否按消息大小检查队列名称_bytes资源，默认false*/
+    @Getter
+    @Setter
+    private volatile boolean bytesFlowEnabled;
+
+    /**每个令牌对应的字节数，消息申请的令牌数=消息大小/bytesPerToken，向上取整*/
+    @Getter
+    private volatile int bytesPerToken = DEFAULT_BYTES_PER_TOKEN;
+
+    /**_bytes资源名称=>单次申请的令牌数上限，见register2Property*/
+    private volatile Map<String, Integer> bytesMaxTokensMap = Collections.emptyMap();
+
+    /**是否检查推送，默认false*/
+    @Getter
+    @Setter
+    private volatile boolean dispatchThrottleEnabled;
+
+    /**推送限速中一直申请不到令牌的最长时间(毫秒)，超过后放行一条消息*/
+    @Getter
+    @Setter
+    private volatile long dispatchMaxWaitMs = DEFAULT_DISPATCH_MAX_WAIT_MS;
+
+    /**是否按队列积压自适应限速，默认false*/
+    @Getter
+    @Setter
+    private volatile boolean backlogThrottleEnabled;
+
+    /**积压的最长消费时间(秒)，积压按当前出队速率超过该时间且仍在增长时限速*/
+    @Getter
+    @Setter
+    private volatile int maxBacklogSeconds = BacklogThrottler.DEFAULT_MAX_BACKLOG_SECONDS;
+
+    /**队列内存使用率上限(%)，达到后限速*/
+    @Getter
+    @Setter
+    private volatile int maxMemoryPercent = BacklogThrottler.DEFAULT_MAX_MEMORY_PERCENT;
+
+    /**是否按broker的资源使用率保护，默认false*/
+    @Getter
+    @Setter
+    private volatile boolean usageProtectionEnabled;
+
+    /**broker内存使用率水位(%)，0表示不检查*/
+    @Getter
+    @Setter
+    private volatile int memoryUsageWatermark = BrokerUsageGuard.DEFAULT_MEMORY_WATERMARK;
+
+    /**broker存储使用率水位(%)，0表示不检查*/
+    @Getter
+    @Setter
+    private volatile int storeUsageWatermark = BrokerUsageGuard.DEFAULT_STORE_WATERMARK;
+
+    /**broker临时存储使用率水位(%)，0表示不检查*/
+    @Getter
+    @Setter
+    private volatile int tempUsageWatermark = BrokerUsageGuard.DEFAULT_TEMP_WATERMARK;
+
+    /**不检查的队列，多个用逗号分隔，支持通配符*/
+    @Getter
+    private volatile String excludedDestinations;
+
+    /**生产者连接的来源解析，为null则不区分来源*/
+    @Getter
+    @Setter
+    private volatile ConnectionOriginParser originParser;
+
+    /**连接id=>来源*/
+    private final ConcurrentMap<ConnectionId, String> originMap = new ConcurrentHashMap<ConnectionId, String>();
+
+    /**消费者id=>推送中的消息*/
+    private final ConcurrentMap<ConsumerId, DispatchWindow> dispatchWindowMap = new ConcurrentHashMap<ConsumerId, DispatchWindow>();
+
+    /**推送被拦截但仍推送的消息数量：限速前已交给连接推送的消息，以及超过dispatchMaxWaitMs后放行的消息*/
+    private final AtomicLong dispatchOverdueCount = new AtomicLong();
+
+    /**转存到溢出队列的消息数量*/
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    /**WAIT策略等待中的消息数量*/
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    /**WAIT策略重试的时间轮，blockStrategy为WAIT时在start中创建*/
+    private volatile PacingTimerWheel waitTimerWheel;
+
+    /**推送限速中申请令牌的时间轮，dispatchThrottleEnabled为true时在start中创建*/
+    private volatile PacingTimerWheel dispatchTimerWheel;
+
+    /**
+     * 推送限速中申请令牌、修改预取数量的线程，dispatchThrottleEnabled为true时在start中创建；
+     * 不和sendExecutor共用，发送可能在队列的生产者流控中等待内存，占满线程后消费者无法恢复推送，内存也无法释放
+     */
+    private volatile ThreadPoolExecutor dispatchExecutor;
+
+    /**生产者id=>WAIT策略等待中的消息*/
+    private final ConcurrentMap<ProducerId, WaitQueue> waitQueueMap = new ConcurrentHashMap<ProducerId, WaitQueue>();
+
+    /**溢出队列的回放，blockStrategy为OVERFLOW时在start中创建*/
+    private OverflowReplayer overflowReplayer;
+
+    /**按积压自适应限速，backlogThrottleEnabled为true时在start中创建*/
+    private volatile BacklogThrottler backlogThrottler;
+
+    /**按broker的资源使用率保护，usageProtectionEnabled为true时在start中创建*/
+    private volatile BrokerUsageGuard brokerUsageGuard;
+
+    /**事务id=>事务中发送的消息*/
+    private final ConcurrentMap<TransactionId, TransactionSends> transactionSendsMap = new ConcurrentHashMap<TransactionId, TransactionSends>();
+
+    /**消息匀速发送器，为null则匀速排队规则由Sentinel处理*/
+    private final MessagePacer messagePacer;
+
+    /**延迟发送的时间轮，messagePacer不为null时创建*/
+    private final PacingTimerWheel pacingTimerWheel;
+
+    /**执行延迟发送和WAIT策略重试的线程池，时间轮到期后转交，线程在第一次使用时创建*/
+    private final ThreadPoolExecutor sendExecutor;
+
     public SentinelBrokerFilter(Broker next) {
+        this(next, null);
+    }
+
+    /**
+     * @param next 下一个broker
+     * @param messagePacer 消息匀速发送器，为null则不开启
+     */
+    public SentinelBrokerFilter(Broker next, MessagePacer messagePacer) {
         super(next);
+        this.messagePacer = messagePacer;
+        this.pacingTimerWheel = messagePacer != null ? new PacingTimerWheel() : null;
+        this.sendExecutor = new ThreadPoolExecutor(DEFAULT_SEND_THREADS, DEFAULT_SEND_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("sentinel-delayed-send", true));
     }
 
     @Override
     public void send(ProducerBrokerExchange producerExchange, Message messageSend) throws Exception {
-        String name = messageSend.getDestination().getPhysicalName() + SEND;
+        DestinationResource resource = sendResourceCache.get(messageSend.getDestination());
+        if (resource == null) {
+            super.send(producerExchange, messageSend);
+            return;
+        }
+        BrokerUsageGuard guard = brokerUsageGuard;
+        String overloadReason = guard != null ? guard.getOverloadReason(messageSend.isPersistent()) : null;
+        if (messageSend.getTransactionId() != null) {
+            // 事务中的消息不能延迟(提交可能先于重试)，broker的资源使用率超过水位时直接拒绝
+            if (overloadReason != null) {
+                usageBlocked(guard, overloadReason, resource, messageSend);
+                return;
+            }
+            transactionSend(resource, producerExchange, messageSend);
+            return;
+        }
+
+        // 来源在传输线程上解析，延迟发送和重试时连接可能已断开，不能再写入originMap
+        String origin = origin(producerExchange.getConnectionContext());
+        MessagePacer.Pace pace = messagePacer != null ? messagePacer.getPace(resource.getName()) : null;
+        if (overloadReason != null && (pace != null || guard.isMemoryOverloaded())) {
+            // 内存超过水位时不进入等待队列，等待的消息占用堆内存且不计入SystemUsage；匀速发送的消息已在排队，也不再等待
+            usageBlocked(guard, overloadReason, resource, messageSend);
+            return;
+        }
+        if (pace != null) {
+            // 匀速发送的消息被积压限速拦截时不再进入等待队列
+            BacklogThrottler throttler = backlogThrottler;
+            if (throttler != null && !throttler.tryAcquire(messageSend.getDestination())) {
+                blocked(resource, producerExchange, messageSend);
+                return;
+            }
+            pacedSend(pace, resource, origin, producerExchange, messageSend);
+            return;
+        }
+
+        Object[] args = paramArgs(producerExchange, messageSend);
+        if (!waitQueueMap.isEmpty() && messageSend.getProducerId() != null && waitQueueMap.containsKey(messageSend.getProducerId())
+            && blockStrategy == BlockStrategy.WAIT) {
+            // 生产者有等待中的消息时排在后面，保持发送顺序
+            if (!waitSend(resource, args, origin, producerExchange, messageSend)) {
+                rejectSend(resource, producerExchange, messageSend);
+            }
+            return;
+        }
+        DestinationResource blockedResource = admitSend(resource, args, origin, producerExchange, messageSend);
+        if (blockedResource != null && !waitSend(resource, args, origin, producerExchange, messageSend)) {
+            rejectSend(blockedResource, producerExchange, messageSend);
+        }
+    }
+
+    /**
+     * 依次按broker的资源使用率、积压限速检查，再申请sentinel资源，通过后发送；WAIT策略的重试也经过这里，每次重试重新检查
+     * @return 被拦截的资源，通过时返回null
+     */
+    private DestinationResource admitSend(DestinationResource resource, Object[] args, String origin,
+                                          ProducerBrokerExchange producerExchange, Message messageSend) throws Exception {
+        BrokerUsageGuard guard = brokerUsageGuard;
+        if (guard != null && guard.getOverloadReason(messageSend.isPersistent()) != null) {
+            return resource;
+        }
+        BacklogThrottler throttler = backlogThrottler;
+        if (throttler != null && !throttler.tryAcquire(messageSend.getDestination())) {
+            return resource;
+        }
+        return trySend(resource, args, origin, producerExchange, messageSend);
+    }
+
+    /**
+     * 没有通过admitSend且不能等待(或等待超时)时的处理：broker的资源使用率仍超过水位时按usageBlocked处理，否则按blocked处理
+     */
+    private void rejectSend(DestinationResource resource, ProducerBrokerExchange producerExchange, Message messageSend) throws Exception {
+        BrokerUsageGuard guard = brokerUsageGuard;
+        String overloadReason = guard != null ? guard.getOverloadReason(messageSend.isPersistent()) : null;
+        if (overloadReason != null) {
+            usageBlocked(guard, overloadReason, resource, messageSend);
+            return;
+        }
+        blocked(resource, producerExchange, messageSend);
+    }
+
+    /**
+     * 申请资源队列名称_send和队列名称_bytes，通过后发送
+     * @param origin 生产者连接的来源，在传输线程上解析(见origin)
+     * @return 被拦截的资源，通过时返回null
+     */
+    private DestinationResource trySend(DestinationResource resource, Object[] args, String origin,
+                                        ProducerBrokerExchange producerExchange, Message messageSend) throws Exception {
+        DestinationResource bytesResource = bytesResource(messageSend);
+        int bytesTokens = bytesResource != null ? bytesTokens(bytesResource, messageSend) : 0;
         Entry entry = null;
+        Entry bytesEntry = null;
         try {
-            ContextUtil.enter(name);
-            entry = SphU.entry(name, EntryType.OUT);
-            log("send message=>" + messageSend.getMessage().getMessageId().toString());
-            super.send(producerExchange, messageSend);
+            ContextUtil.enter(resource.getContextName(), origin);
+            entry = resource.entry(1, args);
+            if (bytesResource != null) {
+                bytesEntry = bytesResource.entry(bytesTokens);
+            }
+            passCount.incrementAndGet();
+            next.send(producerExchange, messageSend);
+            return null;
         } catch (BlockException ex) {
-            logWarn("blocked=>" + messageSend.getMessage().getMessageId().toString());
+            return entry != null ? bytesResource : resource;
+        } finally {
+            if (bytesEntry != null) {
+                bytesEntry.exit(bytesTokens);
+            }
+            if (entry != null) {
+                entry.exit(1, args);
+            }
+            ContextUtil.exit();
+        }
+    }
+
+    /**
+     * WAIT策略：被拦截的消息放入生产者的等待队列，由时间轮每waitIntervalMs按顺序重试，通过后发送，超过maxWaitMs仍被拦截则拒绝
+     * <p>
+     * 需要响应的消息由传输线程跳过响应，重试结束后再通过连接异步返回响应或异常；重试触发队列的生产者流控时由队列响应
+     * </p>
+     * @return 是否放入等待队列，不是WAIT策略、没有producerId或等待的消息数量达到maxWaitingCount时返回false
+     */
+    private boolean waitSend(DestinationResource resource, Object[] args, String origin, ProducerBrokerExchange producerExchange, Message messageSend) {
+        PacingTimerWheel timerWheel = waitTimerWheel;
+        long waitMs = maxWaitMs;
+        ProducerId producerId = messageSend.getProducerId();
+        if (blockStrategy != BlockStrategy.WAIT || timerWheel == null || waitMs <= 0 || producerId == null) {
+            return false;
+        }
+        if (waitingCount.incrementAndGet() > maxWaitingCount) {
+            waitingCount.decrementAndGet();
+            return false;
+        }
+
+        WaitingSend waitingSend = new WaitingSend(resource, args, origin, deferredExchange(producerExchange), messageSend, System.currentTimeMillis() + waitMs);
+        while (true) {
+            WaitQueue queue = waitQueueMap.get(producerId);
+            if (queue == null) {
+                queue = new WaitQueue(producerId, timerWheel);
+                WaitQueue exist = waitQueueMap.putIfAbsent(producerId, queue);
+                if (exist == null) {
+                    queue.offer(waitingSend);
+                    try {
+                        queue.schedule(Math.min(waitIntervalMs, waitMs));
+                    } catch (IllegalStateException e) {
+                        // 时间轮已停止
+                        waitQueueMap.remove(producerId, queue);
+                        waitingCount.decrementAndGet();
+                        return false;
+                    }
+                    break;
+                }
+                queue = exist;
+            }
+            if (queue.offer(waitingSend)) {
+                break;
+            }
+            waitQueueMap.remove(producerId, queue);
+        }
+
+        if (messageSend.isResponseRequired()) {
+            producerExchange.getConnectionContext().setDontSendReponse(true);
+        }
+        return true;
+    }
+
+    /**
+     * broker的资源使用率超过水位，DROP策略丢弃，其他策略拒绝(WAIT策略等待存储或临时存储恢复超过maxWaitMs后)；OVERFLOW和SCHEDULE会继续占用broker的资源，也直接拒绝
+     */
+    private void usageBlocked(BrokerUsageGuard guard, String reason, DestinationResource resource, Message messageSend) throws Exception {
+        guard.blocked();
+        blockCount.incrementAndGet();
+        BlockedMessageAuditor auditor = blockedMessageAuditor;
+        if (auditor != null) {
+            auditor.offer(resource.getName(), messageSend.getMessageId());
+        }
+
+        if (blockStrategy == BlockStrategy.DROP) {
+            return;
+        }
+        throw new ResourceAllocationException("message to " + resource.getName() + " rejected by sentinel, broker " + reason + ", please retry later");
+    }
+
+    /**
+     * 连接的来源，按连接缓存；未设置originParser或没有连接(broker内部发送)时返回空字符串。
+     * 只在传输线程上调用：连接断开后removeConnection移除缓存，其他线程再调用会写入已断开的连接
+     */
+    private String origin(ConnectionContext context) {
+        ConnectionOriginParser parser = originParser;
+        if (parser == null || context == null || context.getConnectionId() == null) {
+            return "";
+        }
+
+        ConnectionId connectionId = context.getConnectionId();
+        String origin = originMap.get(connectionId);
+        if (origin == null) {
+            try {
+                origin = parser.parseOrigin(context);
+            } catch (Exception e) {
+                log.warn(LOG_PRIFEX + "parse origin error, " + connectionId, e);
+            }
+            if (origin == null) {
+                origin = "";
+            }
+            originMap.put(connectionId, origin);
+        }
+        return origin;
+    }
+
+    /**
+     * 热点参数限流的参数，未配置paramFlowKey时返回空参数
+     */
+    private Object[] paramArgs(ProducerBrokerExchange producerExchange, Message messageSend) {
+        String key = paramFlowKey;
+        if (key == null) {
+            return DestinationResource.NO_ARGS;
+        }
+
+        Object param;
+        if (PARAM_KEY_CLIENT_ID.equals(key)) {
+            param = producerExchange.getConnectionContext().getClientId();
+        } else if (PARAM_KEY_GROUP_ID.equals(key)) {
+            param = messageSend.getGroupID();
+        } else {
+            try {
+                param = messageSend.getProperty(key);
+            } catch (IOException e) {
+                log.warn(LOG_PRIFEX + "read property " + key + " error, " + messageSend.getMessageId(), e);
+                param = null;
+            }
+            if (param != null && !(param instanceof String)) {
+                param = param.toString();
+            }
+        }
+        return new Object[]{param};
+    }
+
+    /**
+     * 队列名称_bytes资源，未开启按字节检查或队列不检查时返回null
+     */
+    private DestinationResource bytesResource(Message messageSend) {
+        return bytesFlowEnabled ? bytesResourceCache.get(messageSend.getDestination()) : null;
+    }
+
+    /**
+     * 按消息大小申请的令牌数，超过资源单次申请的上限时截断(见maxTokens)
+     */
+    private int bytesTokens(DestinationResource bytesResource, Message messageSend) {
+        long tokens = (messageSend.getSize() + bytesPerToken - 1) / bytesPerToken;
+        return maxTokens(bytesResource, (int) Math.min(Math.max(tokens, 1L), Integer.MAX_VALUE));
+    }
+
+    /**
+     * 单次申请的令牌数按资源的上限截断，没有上限的资源原样返回
+     */
+    private int maxTokens(DestinationResource resource, int tokens) {
+        Integer max = bytesMaxTokensMap.get(resource.getName());
+        return max != null && tokens > max ? max : tokens;
+    }
+
+    /**
+     * 监听流控规则的变化，更新_bytes资源单次申请的令牌数上限，一般在FlowRuleManager.register2Property之后调用
+     * <p>
+     * 令牌数超过QPS规则的count时DefaultController总是拦截，大消息永远无法通过(DROP策略静默丢弃，WAIT策略总是超时)；
+     * 上限取资源的QPS规则中最小的count，截断后的大消息占满一个统计窗口，每个窗口最多通过一条
+     * </p>
+     * @param property 流控规则的property
+     */
+    public void register2Property(SentinelProperty<List<FlowRule>> property) {
+        property.addListener(new PropertyListener<List<FlowRule>>() {
+            @Override
+            public void configUpdate(List<FlowRule> rules) {
+                loadBytesMaxTokens(rules);
+            }
+
+            @Override
+            public void configLoad(List<FlowRule> rules) {
+                loadBytesMaxTokens(rules);
+            }
+        });
+    }
+
+    private void loadBytesMaxTokens(List<FlowRule> rules) {
+        Map<String, Integer> maxTokensMap = new HashMap<String, Integer>();
+        if (rules != null) {
+            for (FlowRule rule : rules) {
+                if (rule == null || rule.getResource() == null || !rule.getResource().endsWith(BYTES)
+                    || rule.getGrade() != RuleConstant.FLOW_GRADE_QPS) {
+                    continue;
+                }
+                int max = (int) Math.max(1, Math.min(rule.getCount(), Integer.MAX_VALUE));
+                Integer exist = maxTokensMap.get(rule.getResource());
+                if (exist == null || max < exist) {
+                    maxTokensMap.put(rule.getResource(), max);
+                }
+            }
+        }
+        bytesMaxTokensMap = maxTokensMap;
+    }
+
+    /**
+     * 事务中的消息只计数，直接发送到事务中
+     */
+    private void transactionSend(DestinationResource resource, ProducerBrokerExchange producerExchange, Message messageSend) throws Exception {
+        TransactionId transactionId = messageSend.getTransactionId();
+        TransactionSends sends = transactionSendsMap.get(transactionId);
+        if (sends == null) {
+            sends = new TransactionSends(producerExchange.getConnectionContext().getConnectionId());
+            TransactionSends exist = transactionSendsMap.putIfAbsent(transactionId, sends);
+            if (exist != null) {
+                sends = exist;
+            }
+        }
+        sends.add(resource, messageSend.getMessageId(), paramArgs(producerExchange, messageSend));
+        DestinationResource bytesResource = bytesResource(messageSend);
+        if (bytesResource != null) {
+            sends.addTokens(bytesResource, bytesTokens(bytesResource, messageSend), messageSend.getMessageId());
+        }
+        super.send(producerExchange, messageSend);
+    }
+
+    @Override
+    public int prepareTransaction(ConnectionContext context, TransactionId xid) throws Exception {
+        TransactionSends sends = transactionSendsMap.get(xid);
+        if (sends != null) {
+            // prepare和commit可能不在同一线程，sentinel的entry不能跨线程，只在prepare时检查并立即释放
+            int[] counts = sends.getCounts();
+            Object[][] args = sends.getArgs();
+            Entry[] entries;
+            try {
+                entries = entryTransaction(sends.getEntryResources(), counts, args, origin(context));
+            } catch (BlockException ex) {
+                transactionSendsMap.remove(xid);
+                blockedTransaction(context, xid, sends, true);
+                return 0;
+            }
+            exitTransaction(entries, counts, args);
+            passCount.addAndGet(sends.getMessageCount());
+            sends.setAdmitted(true);
+        }
+        return super.prepareTransaction(context, xid);
+    }
+
+    @Override
+    public void commitTransaction(ConnectionContext context, TransactionId xid, boolean onePhase) throws Exception {
+        TransactionSends sends = transactionSendsMap.remove(xid);
+        if (sends == null || sends.isAdmitted()) {
+            super.commitTransaction(context, xid, onePhase);
+            return;
+        }
+
+        int[] counts = sends.getCounts();
+        Object[][] args = sends.getArgs();
+        Entry[] entries;
+        try {
+            entries = entryTransaction(sends.getEntryResources(), counts, args, origin(context));
+        } catch (BlockException ex) {
+            blockedTransaction(context, xid, sends, false);
+            return;
+        }
+
+        try {
+            passCount.addAndGet(sends.getMessageCount());
+            super.commitTransaction(context, xid, onePhase);
+        } finally {
+            exitTransaction(entries, counts, args);
+        }
+    }
+
+    @Override
+    public void rollbackTransaction(ConnectionContext context, TransactionId xid) throws Exception {
+        transactionSendsMap.remove(xid);
+        super.rollbackTransaction(context, xid);
+    }
+
+    @Override
+    public void forgetTransaction(ConnectionContext context, TransactionId xid) throws Exception {
+        transactionSendsMap.remove(xid);
+        super.forgetTransaction(context, xid);
+    }
+
+    @Override
+    public void removeConnection(ConnectionContext context, ConnectionInfo info, Throwable error) throws Exception {
+        // 连接断开时本地事务由broker直接回滚，不经过rollbackTransaction
+        Iterator<Map.Entry<TransactionId, TransactionSends>> iterator = transactionSendsMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TransactionId, TransactionSends> entry = iterator.next();
+            if (entry.getKey().isLocalTransaction() && info.getConnectionId().equals(entry.getValue().getConnectionId())) {
+                iterator.remove();
+            }
+        }
+        originMap.remove(info.getConnectionId());
+        super.removeConnection(context, info, error);
+    }
+
+    /**
+     * 在同一个上下文中依次申请事务中的所有资源，任一资源被拦截则释放已申请的资源
+     * <p>
+     * 提交命令的响应由传输线程返回，不能延迟，WAIT策略也不等待
+     * </p>
+     */
+    private Entry[] entryTransaction(List<DestinationResource> resources, int[] counts, Object[][] args, String origin) throws BlockException {
+        Entry[] entries = new Entry[resources.size()];
+        for (int i = 0; i < counts.length; i++) {
+            // 事务累计的_bytes令牌数同样按上限截断，退出时使用同一数组
+            counts[i] = maxTokens(resources.get(i), counts[i]);
+        }
+        ContextUtil.enter(resources.get(0).getContextName(), origin);
+        boolean success = false;
+        try {
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = resources.get(i).entry(counts[i], args[i]);
+            }
+            success = true;
+            return entries;
+        } finally {
+            if (!success) {
+                exitTransaction(entries, counts, args);
+            }
+        }
+    }
+
+    /**
+     * 按申请的相反顺序释放事务的资源
+     */
+    private void exitTransaction(Entry[] entries, int[] counts, Object[][] args) {
+        for (int i = entries.length - 1; i >= 0; i--) {
+            if (entries[i] != null) {
+                entries[i].exit(counts[i], args[i]);
+            }
+        }
+        ContextUtil.exit();
+    }
+
+    /**
+     * 事务被拦截，回滚事务；DROP策略的提交正常返回，其他策略以及prepare时抛出ResourceAllocationException
+     */
+    private void blockedTransaction(ConnectionContext context, TransactionId xid, TransactionSends sends, boolean prepare) throws Exception {
+        blockCount.addAndGet(sends.getMessageCount());
+        BlockedMessageAuditor auditor = blockedMessageAuditor;
+        if (auditor != null) {
+            for (DestinationResource resource : sends.getResources()) {
+                auditor.offer(resource.getName(), sends.getFirstMessageId(resource));
+            }
+        }
+
+        super.rollbackTransaction(context, xid);
+        if (blockStrategy == BlockStrategy.DROP && !prepare) {
+            return;
+        }
+        throw new ResourceAllocationException("transaction " + xid + " blocked by sentinel, please retry later");
+    }
+
+    /**
+     * 匀速发送，不需要延迟且没有排队中的消息时直接发送，否则放入时间轮
+     */
+    private void pacedSend(MessagePacer.Pace pace, final DestinationResource resource, String origin,
+                           final ProducerBrokerExchange producerExchange, final Message messageSend) throws Exception {
+        Object[] args = paramArgs(producerExchange, messageSend);
+        long delayMs;
+        synchronized (pace) {
+            delayMs = pace.acquire(System.currentTimeMillis());
+            if (delayMs > 0 || (delayMs == 0 && pace.hasPending())) {
+                scheduleSend(pace, delayMs, resource, args, origin, producerExchange, messageSend);
+                return;
+            }
+        }
+
+        if (delayMs < 0) {
+            blocked(resource, producerExchange, messageSend);
+            return;
+        }
+
+        DestinationResource blockedResource = trySend(resource, args, origin, producerExchange, messageSend);
+        if (blockedResource != null) {
+            blocked(blockedResource, producerExchange, messageSend);
+        }
+    }
+
+    /**
+     * 放入时间轮延迟发送，调用方需持有pace锁
+     * <p>
+     * 到期后转交给pace的串行执行器，在sendExecutor中按放入时间轮的顺序发送，不占用时间轮的线程；
+     * 需要响应的消息由传输线程跳过响应，实际发送后再通过连接异步返回响应或异常。发送使用复制的exchange和连接上下文(见deferredExchange)
+     * </p>
+     */
+    private void scheduleSend(final MessagePacer.Pace pace, long delayMs, final DestinationResource resource, final Object[] args,
+                              final String origin, ProducerBrokerExchange producerExchange, final Message messageSend) {
+        final ProducerBrokerExchange exchange = deferredExchange(producerExchange);
+        final boolean responseRequired = messageSend.isResponseRequired();
+        if (responseRequired) {
+            producerExchange.getConnectionContext().setDontSendReponse(true);
+        }
+        pace.incrementPending();
+        final Executor executor = pace.getSendExecutor(sendExecutor);
+        final Runnable sendTask = new Runnable() {
+            @Override
+            public void run() {
+                Throwable error = null;
+                try {
+                    DestinationResource blockedResource = trySend(resource, args, origin, exchange, messageSend);
+                    if (blockedResource != null) {
+                        try {
+                            blocked(blockedResource, exchange, messageSend);
+                        } catch (Exception e) {
+                            error = e;
+                        }
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                    if (!responseRequired) {
+                        log.error(LOG_PRIFEX + "paced send error, " + resource.getName() + "," + messageSend.getMessageId(), e);
+                    }
+                } finally {
+                    pace.decrementPending();
+                }
+
+                if (responseRequired) {
+                    respond(exchange, messageSend, error);
+                }
+            }
+        };
+        pacingTimerWheel.schedule(delayMs, new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(sendTask);
+            }
+        });
+    }
+
+    /**
+     * 延迟发送使用的exchange：复制生产者的exchange和连接上下文
+     * <p>
+     * 发送线程和传输线程可能同时发送同一生产者的消息，AbstractRegion.send会修改exchange的目标队列，
+     * 队列的生产者流控会在上下文上设置dontSendReponse，共用时会把消息存入另一条消息的队列、丢掉传输线程正在处理的命令的响应
+     * </p>
+     */
+    private static ProducerBrokerExchange deferredExchange(ProducerBrokerExchange producerExchange) {
+        ProducerBrokerExchange exchange = producerExchange.copy();
+        ConnectionContext context = producerExchange.getConnectionContext().copy();
+        context.setDontSendReponse(false);
+        exchange.setConnectionContext(context);
+        return exchange;
+    }
+
+    /**
+     * 延迟发送后返回响应；发送时触发了队列的生产者流控(上下文设置了dontSendReponse)时由队列在消息存入后响应，这里不再响应
+     * @param exchange deferredExchange复制的exchange
+     */
+    private void respond(ProducerBrokerExchange exchange, Message messageSend, Throwable error) {
+        ConnectionContext context = exchange.getConnectionContext();
+        if (context.getConnection() == null || context.isDontSendReponse()) {
+            return;
+        }
+        Response response = error != null ? new ExceptionResponse(error) : new Response();
+        response.setCorrelationId(messageSend.getCommandId());
+        try {
+            context.getConnection().dispatchAsync(response);
+        } catch (Exception e) {
+            log.warn(LOG_PRIFEX + "respond error, " + messageSend.getMessageId(), e);
+        }
+    }
+
+    /**
+     * 被拦截，计数并记录审计日志，再按blockStrategy处理
+     */
+    private void blocked(DestinationResource resource, ProducerBrokerExchange producerExchange, Message messageSend) throws Exception {
+        blockCount.incrementAndGet();
+        BlockedMessageAuditor auditor = blockedMessageAuditor;
+        if (auditor != null) {
+            auditor.offer(resource.getName(), messageSend.getMessageId());
+        }
+
+        switch (blockStrategy) {
+            case DROP:
+                return;
+            case OVERFLOW:
+                if (messageSend.getDestination().isQueue()) {
+                    reroute(producerExchange, messageSend, new ActiveMQQueue(messageSend.getDestination().getPhysicalName() + overflowSuffix), 0);
+                    overflowCount.incrementAndGet();
+                    return;
+                }
+                // topic没有订阅者时无法转存，和REJECT相同，生产者可以重试
+                break;
+            case SCHEDULE:
+                reroute(producerExchange, messageSend, messageSend.getDestination(), scheduleDelayMs);
+                return;
+            default:
+                break;
+        }
+        throw new ResourceAllocationException("message to " + resource.getName() + " blocked by sentinel, please retry later");
+    }
+
+    /**
+     * 复制消息发送到目标队列，不再经过sentinel检查；和BrokerSupport.resend相同，原队列记录在originalDestination中
+     * <p>
+     * 使用新的ProducerBrokerExchange，避免使用生产者已缓存的原队列；沿用生产者的ProducerState，生产者窗口的确认不受影响
+     * </p>
+     * @param delayMs 延迟投递时间(毫秒)，0表示不延迟
+     */
+    private void reroute(ProducerBrokerExchange producerExchange, Message messageSend, ActiveMQDestination destination, long delayMs) throws Exception {
+        Message message = messageSend.copy();
+        message.setOriginalDestination(messageSend.getDestination());
+        message.setDestination(destination);
+        message.setMemoryUsage(null);
+        if (delayMs > 0) {
+            message.setProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, delayMs);
+        }
+
+        ProducerBrokerExchange exchange = new ProducerBrokerExchange();
+        exchange.setConnectionContext(producerExchange.getConnectionContext());
+        exchange.setProducerState(producerExchange.getProducerState());
+        exchange.setMutable(true);
+        next.send(exchange, message);
+    }
+
+    @Override
+    public Subscription addConsumer(ConnectionContext context, ConsumerInfo info) throws Exception {
+        if (!dispatchThrottleEnabled || AdvisorySupport.isAdvisoryTopic(info.getDestination())) {
+            return super.addConsumer(context, info);
+        }
+
+        // vm传输时ConsumerInfo和客户端共用同一个对象，复制后限速修改预取数量不影响客户端(预取数量为0时客户端会主动拉取)
+        Subscription subscription = super.addConsumer(context, info.copy());
+        if (subscription != null) {
+            // 保存订阅，推送被拦截时按预取数量限速
+            dispatchWindowMap.put(info.getConsumerId(), new DispatchWindow(subscription));
+        }
+        return subscription;
+    }
+
+    @Override
+    public void preProcessDispatch(MessageDispatch messageDispatch) {
+        if (dispatchThrottleEnabled && messageDispatch.getMessage() != null && messageDispatch.getConsumerId() != null
+            && !AdvisorySupport.isAdvisoryTopic(messageDispatch.getDestination())) {
+            throttleDispatch(messageDispatch);
+        }
+        super.preProcessDispatch(messageDispatch);
+    }
+
+    /**
+     * 推送前检查，推送不能拒绝，被拦截时这条消息仍推送，该消费者进入限速；限速中按申请到的令牌推送
+     */
+    private void throttleDispatch(MessageDispatch messageDispatch) {
+        DestinationResource resource = dispatchResourceCache.get(messageDispatch.getDestination());
+        if (resource == null) {
+            return;
+        }
+
+        DispatchWindow window = dispatchWindowMap.get(messageDispatch.getConsumerId());
+        if (window == null) {
+            window = new DispatchWindow();
+            DispatchWindow exist = dispatchWindowMap.putIfAbsent(messageDispatch.getConsumerId(), window);
+            if (exist != null) {
+                window = exist;
+            }
+        }
+
+        ClusterNode clusterNode = null;
+        if (window.takePermit() || dispatchEntry(resource)) {
+            clusterNode = ClusterBuilderSlot.getClusterNode(resource.getName(), resource.getEntryType());
+        } else {
+            dispatchOverdueCount.incrementAndGet();
+            PacingTimerWheel timerWheel = dispatchTimerWheel;
+            if (timerWheel != null && window.throttle(resource, messageDispatch.getDestination())) {
+                scheduleGrant(timerWheel, window, System.currentTimeMillis() + dispatchMaxWaitMs);
+            }
+        }
+        window.dispatched(clusterNode, System.currentTimeMillis());
+    }
+
+    /**
+     * 申请推送的令牌，entry立即退出，只做准入检查
+     */
+    private boolean dispatchEntry(DestinationResource resource) {
+        Entry entry = null;
+        try {
+            ContextUtil.enter(resource.getContextName());
+            entry = resource.entry(1);
+            return true;
+        } catch (BlockException ex) {
+            return false;
         } finally {
             if (entry != null) {
                 entry.exit();
@@ -47,11 +1049,364 @@ public class SentinelBrokerFilter extends BrokerFilter {
         }
     }
 
-    private void log(String info) {
-        log.info(LOG_PRIFEX + info);
+    /**
+     * 限速中每waitIntervalMs为消费者申请令牌，按等待推送的消息数量申请，申请到的令牌转为预取数量；
+     * 超过deadline一直申请不到时放行一条消息。没有等待推送的消息、或申请到的令牌达到原预取数量时解除限速。
+     * 修改预取数量会触发推送，转交dispatchExecutor执行，不占用时间轮的线程
+     */
+    private void scheduleGrant(final PacingTimerWheel timerWheel, final DispatchWindow window, final long deadline) {
+        final Runnable grantTask = new Runnable() {
+            @Override
+            public void run() {
+                DestinationResource resource = window.getThrottledResource();
+                ActiveMQDestination destination = window.getThrottledDestination();
+                if (resource == null) {
+                    return;
+                }
+
+                // 已申请的令牌还未用完时只补足差额
+                int waiting = Math.min(dispatchWaitingCount(window), window.getPrefetchSize());
+                int count = 0;
+                while (count < waiting - window.getPermits() && dispatchEntry(resource)) {
+                    count++;
+                }
+                if (waiting <= 0 || count >= window.getPrefetchSize()) {
+                    window.release();
+                    wakeup(destination);
+                    return;
+                }
+
+                long nextDeadline = deadline;
+                long now = System.currentTimeMillis();
+                if (count > 0 || window.getPermits() > 0) {
+                    nextDeadline = now + dispatchMaxWaitMs;
+                } else if (now >= deadline) {
+                    dispatchOverdueCount.incrementAndGet();
+                    count = 1;
+                    nextDeadline = now + dispatchMaxWaitMs;
+                }
+                if (count > 0) {
+                    window.grant(count);
+                    wakeup(destination);
+                }
+                try {
+                    scheduleGrant(timerWheel, window, nextDeadline);
+                } catch (IllegalStateException e) {
+                    // 时间轮已停止
+                    window.release();
+                    wakeup(destination);
+                }
+            }
+        };
+        timerWheel.schedule(waitIntervalMs, new Runnable() {
+            @Override
+            public void run() {
+                dispatchExecutor.execute(grantTask);
+            }
+        });
+    }
+
+    /**
+     * 修改预取数量后唤醒队列，队列中还未分配给消费者的消息重新推送
+     */
+    private void wakeup(ActiveMQDestination destination) {
+        if (destination == null) {
+            return;
+        }
+        for (Destination regionDestination : next.getDestinations(destination)) {
+            regionDestination.wakeup();
+        }
     }
 
-    private void logWarn(String info) {
-        log.warn(LOG_PRIFEX + info);
+    /**
+     * 限速中等待推送给该消费者的消息数量：topic为订阅中待推送的消息，queue为队列中还未推送的消息
+     */
+    private int dispatchWaitingCount(DispatchWindow window) {
+        Subscription subscription = window.getSubscription();
+        if (subscription instanceof TopicSubscription) {
+            return subscription.getPendingQueueSize();
+        }
+
+        ActiveMQDestination destination = window.getThrottledDestination();
+        if (destination == null) {
+            return 0;
+        }
+        long count = 0;
+        for (Destination regionDestination : next.getDestinations(destination)) {
+            count += regionDestination.getDestinationStatistics().getMessages().getCount()
+                - regionDestination.getDestinationStatistics().getInflight().getCount();
+        }
+        return (int) Math.min(Math.max(count, 0), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void acknowledge(ConsumerBrokerExchange consumerExchange, MessageAck ack) throws Exception {
+        DispatchWindow window = dispatchWindowMap.isEmpty() ? null : dispatchWindowMap.get(ack.getConsumerId());
+        boolean consumed = ack.isStandardAck() || ack.isIndividualAck() || ack.isPoisonAck() || ack.isUnmatchedAck();
+        if (window != null && consumed) {
+            // 确认会触发推送，限速中先减少预取数量
+            window.beforeAcknowledge(ack.getMessageCount());
+        }
+        super.acknowledge(consumerExchange, ack);
+        if (window != null) {
+            if (consumed) {
+                window.acknowledged(ack.getMessageCount(), System.currentTimeMillis());
+            }
+            // 其他确认也可能移除推送中的消息，如客户端对推送后过期的消息发送的DELIVERED确认
+            window.trim();
+        }
+    }
+
+    @Override
+    public void removeConsumer(ConnectionContext context, ConsumerInfo info) throws Exception {
+        super.removeConsumer(context, info);
+        DispatchWindow window = dispatchWindowMap.remove(info.getConsumerId());
+        if (window != null) {
+            window.clear();
+        }
+    }
+
+    /**
+     * 设置不检查的队列，多个用逗号分隔，支持通配符，如ActiveMQ.&gt;,monitor.*
+     */
+    public void setExcludedDestinations(String excludedDestinations) {
+        List<String> names = excludedDestinations != null ? Arrays.asList(excludedDestinations.split(",")) : Collections.<String>emptyList();
+        sendResourceCache.setExcludedDestinations(names);
+        bytesResourceCache.setExcludedDestinations(names);
+        dispatchResourceCache.setExcludedDestinations(names);
+        this.excludedDestinations = excludedDestinations;
+    }
+
+    public void setBytesPerToken(int bytesPerToken) {
+        if (bytesPerToken <= 0) {
+            throw new IllegalArgumentException("bytesPerToken必须大于0");
+        }
+        this.bytesPerToken = bytesPerToken;
+    }
+
+    @Override
+    public void removeDestination(ConnectionContext context, ActiveMQDestination destination, long timeout) throws Exception {
+        sendResourceCache.remove(destination);
+        bytesResourceCache.remove(destination);
+        dispatchResourceCache.remove(destination);
+        BacklogThrottler throttler = backlogThrottler;
+        if (throttler != null) {
+            throttler.remove(destination);
+        }
+        super.removeDestination(context, destination, timeout);
+    }
+
+    @Override
+    public void start() throws Exception {
+        super.start();
+        if (blockStrategy == BlockStrategy.OVERFLOW) {
+            overflowReplayer = new OverflowReplayer(next, sendResourceCache, overflowSuffix, replayIntervalMs, replayBatchSize);
+            overflowReplayer.start();
+        }
+        if (blockStrategy == BlockStrategy.WAIT) {
+            waitTimerWheel = new PacingTimerWheel(PacingTimerWheel.DEFAULT_TICK_MS, PacingTimerWheel.DEFAULT_WHEEL_SIZE, "sentinel-wait-timer-wheel");
+        }
+        if (dispatchThrottleEnabled) {
+            dispatchExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("sentinel-dispatch-grant", true));
+            dispatchTimerWheel = new PacingTimerWheel(PacingTimerWheel.DEFAULT_TICK_MS, PacingTimerWheel.DEFAULT_WHEEL_SIZE, "sentinel-dispatch-timer-wheel");
+        }
+        if (usageProtectionEnabled) {
+            brokerUsageGuard = new BrokerUsageGuard(getBrokerService().getSystemUsage(), BrokerUsageGuard.DEFAULT_INTERVAL_MS,
+                memoryUsageWatermark, storeUsageWatermark, tempUsageWatermark);
+            brokerUsageGuard.start();
+        }
+        if (backlogThrottleEnabled) {
+            backlogThrottler = new BacklogThrottler(next, BacklogThrottler.DEFAULT_INTERVAL_MS, maxBacklogSeconds, maxMemoryPercent,
+                BacklogThrottler.DEFAULT_MIN_RATE);
+            backlogThrottler.start();
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        BlockedMessageAuditor auditor = blockedMessageAuditor;
+        if (auditor != null) {
+            auditor.stop();
+        }
+        if (pacingTimerWheel != null) {
+            pacingTimerWheel.stop();
+        }
+        if (waitTimerWheel != null) {
+            waitTimerWheel.stop();
+        }
+        if (dispatchTimerWheel != null) {
+            dispatchTimerWheel.stop();
+        }
+        if (dispatchExecutor != null) {
+            dispatchExecutor.shutdown();
+        }
+        sendExecutor.shutdown();
+        if (overflowReplayer != null) {
+            overflowReplayer.stop();
+        }
+        if (backlogThrottler != null) {
+            backlogThrottler.stop();
+        }
+        if (brokerUsageGuard != null) {
+            brokerUsageGuard.stop();
+        }
+        log.info(LOG_PRIFEX + "stop, passCount=" + passCount.get() + ",blockCount=" + blockCount.get() + ",overflowCount=" + overflowCount.get()
+            + ",dispatchOverdueCount=" + dispatchOverdueCount.get()
+            + ",replayedCount=" + (overflowReplayer != null ? overflowReplayer.getReplayedCount() : 0)
+            + ",backlogThrottledCount=" + (backlogThrottler != null ? backlogThrottler.getThrottledCount() : 0)
+            + ",usageBlockedCount=" + (brokerUsageGuard != null ? brokerUsageGuard.getBlockedCount() : 0)
+            + ",resources=" + sendResourceCache.size() + ",collapsed=" + sendResourceCache.getCollapsedStats());
+        super.stop();
+    }
+
+    /**
+     * 通过的消息数量
+     */
+    public long getPassCount() {
+        return passCount.get();
+    }
+
+    /**
+     * 被拦截的消息数量
+     */
+    public long getBlockCount() {
+        return blockCount.get();
+    }
+
+    /**
+     * 推送等待超时后直接推送的消息数量
+     */
+    public long getDispatchOverdueCount() {
+        return dispatchOverdueCount.get();
+    }
+
+    /**
+     * 转存到溢出队列的消息数量
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * WAIT策略等待中的消息
+     */
+    private static class WaitingSend {
+
+        private final DestinationResource resource;
+
+        private final Object[] args;
+
+        /**生产者连接的来源，加入时在传输线程上解析*/
+        private final String origin;
+
+        /**复制的exchange和连接上下文，重试在sendExecutor中进行，不能和传输线程共用(见deferredExchange)*/
+        private final ProducerBrokerExchange producerExchange;
+
+        private final Message messageSend;
+
+        /**最晚发送时间(毫秒)*/
+        private final long deadline;
+
+        WaitingSend(DestinationResource resource, Object[] args, String origin, ProducerBrokerExchange producerExchange, Message messageSend, long deadline) {
+            this.resource = resource;
+            this.args = args;
+            this.origin = origin;
+            this.producerExchange = producerExchange;
+            this.messageSend = messageSend;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 一个生产者WAIT策略等待中的消息，按加入顺序重试：队首通过或超时后继续下一条，队首仍被拦截则等待下一次重试；
+     * 队列为空时从waitQueueMap中移除。时间轮到期后转交sendExecutor执行，同一时刻只在一处排队，不会并发重试
+     */
+    private class WaitQueue implements Runnable {
+
+        private final ProducerId producerId;
+
+        private final PacingTimerWheel timerWheel;
+
+        private final LinkedList<WaitingSend> sends = new LinkedList<WaitingSend>();
+
+        /**已从waitQueueMap中移除，不能再加入*/
+        private boolean closed;
+
+        /**时间轮到期后转交给sendExecutor*/
+        private final Runnable retryTask = new Runnable() {
+            @Override
+            public void run() {
+                sendExecutor.execute(WaitQueue.this);
+            }
+        };
+
+        WaitQueue(ProducerId producerId, PacingTimerWheel timerWheel) {
+            this.producerId = producerId;
+            this.timerWheel = timerWheel;
+        }
+
+        void schedule(long delayMs) {
+            timerWheel.schedule(delayMs, retryTask);
+        }
+
+        synchronized boolean offer(WaitingSend waitingSend) {
+            if (closed) {
+                return false;
+            }
+            sends.add(waitingSend);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                WaitingSend waitingSend;
+                synchronized (this) {
+                    waitingSend = sends.peek();
+                    if (waitingSend == null) {
+                        closed = true;
+                        waitQueueMap.remove(producerId, this);
+                        return;
+                    }
+                }
+
+                Throwable error = null;
+                boolean responseRequired = waitingSend.messageSend.isResponseRequired();
+                DestinationResource blockedResource = null;
+                try {
+                    blockedResource = admitSend(waitingSend.resource, waitingSend.args, waitingSend.origin, waitingSend.producerExchange,
+                        waitingSend.messageSend);
+                } catch (Throwable e) {
+                    error = e;
+                    if (!responseRequired) {
+                        log.error(LOG_PRIFEX + "wait send error, " + waitingSend.resource.getName() + "," + waitingSend.messageSend.getMessageId(), e);
+                    }
+                }
+
+                if (blockedResource != null) {
+                    long remainingMs = waitingSend.deadline - System.currentTimeMillis();
+                    BrokerUsageGuard guard = brokerUsageGuard;
+                    // 等待中内存超过水位时不再等待，尽快释放等待的消息占用的堆内存
+                    if (remainingMs > 0 && (guard == null || !guard.isMemoryOverloaded())) {
+                        schedule(Math.min(waitIntervalMs, remainingMs));
+                        return;
+                    }
+                    try {
+                        rejectSend(blockedResource, waitingSend.producerExchange, waitingSend.messageSend);
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                }
+
+                synchronized (this) {
+                    sends.poll();
+                }
+                waitingCount.decrementAndGet();
+                if (responseRequired) {
+                    respond(waitingSend.producerExchange, waitingSend.messageSend, error);
+                }
+            }
+        }
     }
 }
@@ -8,10 +8,13 @@ import com.alibaba.csp.sentinel.slots.block.degrade.DegradeRule;
 import com.alibaba.csp.sentinel.slots.block.degrade.DegradeRuleManager;
 import com.alibaba.csp.sentinel.slots.block.flow.FlowRule;
 import com.alibaba.csp.sentinel.slots.block.flow.FlowRuleManager;
+import com.alibaba.csp.sentinel.slots.block.flow.param.ParamFlowRule;
+import com.alibaba.csp.sentinel.slots.block.flow.param.ParamFlowRuleManager;
 import com.alibaba.csp.sentinel.slots.system.SystemRule;
 import com.alibaba.csp.sentinel.slots.system.SystemRuleManager;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.TypeReference;
+import com.cdfive.sentinel.support.activemq.DestinationPatternManager;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -45,6 +48,93 @@ public class SentinelBrokerPlugin implements BrokerPlugin {
     /**MQ系统保护规则的zk节点*/
     private String mqSystemRulePath;
 
+    /**MQ热点参数限流规则的zk节点，配置paramFlowKey时必填*/
+    private String mqParamFlowRulePath;
+
+    /**来源的解析方式，CLIENT_ID、REMOTE_ADDRESS或USER_NAME，不配置则不区分来源*/
+    private OriginType originType;
+
+    /**自定义的来源解析，优先于originType*/
+    private ConnectionOriginParser originParser;
+
+    /**热点参数限流的参数，clientId、JMSXGroupID或消息的属性名称，不配置则不检查热点参数*/
+    private String paramFlowKey;
+
+    /**是否开启被拦截消息的审计日志，默认false*/
+    private boolean auditEnabled;
+
+    /**审计日志缓冲区大小*/
+    private int auditBufferSize = BlockedMessageAuditor.DEFAULT_BUFFER_SIZE;
+
+    /**审计日志采样率，每N条被拦截的消息记录1条*/
+    private int auditSampleRate = BlockedMessageAuditor.DEFAULT_SAMPLE_RATE;
+
+    /**审计日志每秒最多输出的行数*/
+    private int auditMaxLogPerSec = BlockedMessageAuditor.DEFAULT_MAX_LOG_PER_SEC;
+
+    /**消息被拦截时的处理策略，DROP、REJECT、WAIT、OVERFLOW或SCHEDULE，默认DROP*/
+    private BlockStrategy blockStrategy = BlockStrategy.DROP;
+
+    /**WAIT策略最长等待时间(毫秒)，超过后拒绝*/
+    private long maxWaitMs = SentinelBrokerFilter.DEFAULT_MAX_WAIT_MS;
+
+    /**WAIT策略重试间隔(毫秒)*/
+    private long waitIntervalMs = SentinelBrokerFilter.DEFAULT_WAIT_INTERVAL_MS;
+
+    /**WAIT策略同时等待的最大消息数量，超过后拒绝*/
+    private int maxWaitingCount = SentinelBrokerFilter.DEFAULT_MAX_WAITING_COUNT;
+
+    /**OVERFLOW策略溢出队列名称后缀*/
+    private String overflowSuffix = SentinelBrokerFilter.DEFAULT_OVERFLOW_SUFFIX;
+
+    /**OVERFLOW策略回放间隔(毫秒)*/
+    private long replayIntervalMs = OverflowReplayer.DEFAULT_INTERVAL_MS;
+
+    /**OVERFLOW策略每个溢出队列每轮最多回放的数量*/
+    private int replayBatchSize = OverflowReplayer.DEFAULT_BATCH_SIZE;
+
+    /**SCHEDULE策略延迟投递时间(毫秒)*/
+    private long scheduleDelayMs = SentinelBrokerFilter.DEFAULT_SCHEDULE_DELAY_MS;
+
+    /**是否按消息大小检查发送，资源名称=队列名称_bytes，默认false*/
+    private boolean bytesFlowEnabled;
+
+    /**每个令牌对应的字节数*/
+    private int bytesPerToken = SentinelBrokerFilter.DEFAULT_BYTES_PER_TOKEN;
+
+    /**是否按队列积压自适应限速，默认false*/
+    private boolean backlogThrottleEnabled;
+
+    /**积压的最长消费时间(秒)*/
+    private int maxBacklogSeconds = BacklogThrottler.DEFAULT_MAX_BACKLOG_SECONDS;
+
+    /**队列内存使用率上限(%)*/
+    private int maxMemoryPercent = BacklogThrottler.DEFAULT_MAX_MEMORY_PERCENT;
+
+    /**是否按broker的资源使用率保护，默认false*/
+    private boolean usageProtectionEnabled;
+
+    /**broker内存使用率水位(%)，0表示不检查*/
+    private int memoryUsageWatermark = BrokerUsageGuard.DEFAULT_MEMORY_WATERMARK;
+
+    /**broker存储使用率水位(%)，0表示不检查*/
+    private int storeUsageWatermark = BrokerUsageGuard.DEFAULT_STORE_WATERMARK;
+
+    /**broker临时存储使用率水位(%)，0表示不检查*/
+    private int tempUsageWatermark = BrokerUsageGuard.DEFAULT_TEMP_WATERMARK;
+
+    /**不检查的队列，多个用逗号分隔，支持通配符，如ActiveMQ.&gt;,monitor.* */
+    private String excludedDestinations;
+
+    /**是否检查broker推送给消费者的消息，资源名称=队列名称_dispatch，默认false*/
+    private boolean dispatchThrottleEnabled;
+
+    /**推送限速中最长等待令牌的时间(毫秒)，超过后放行一条消息*/
+    private long dispatchMaxWaitMs = SentinelBrokerFilter.DEFAULT_DISPATCH_MAX_WAIT_MS;
+
+    /**是否开启匀速发送，开启后匀速排队规则的消息延迟发送，不阻塞传输线程，默认false*/
+    private boolean pacingEnabled;
+
     @Override
     public Broker installPlugin(Broker broker) throws Exception {
         log("installPlugin start");
@@ -53,21 +143,37 @@ public class SentinelBrokerPlugin implements BrokerPlugin {
         checkProperty("mqFlowRulePath", mqFlowRulePath);
         checkProperty("mqDegradeRulePath", mqDegradeRulePath);
         checkProperty("mqSystemRulePath", mqSystemRulePath);
+        if (StringUtils.hasText(paramFlowKey)) {
+            checkProperty("mqParamFlowRulePath", mqParamFlowRulePath);
+        }
+        if (blockStrategy == null) {
+            throw new IllegalArgumentException("blockStrategy属性不能为空，请检查activemq.xml中SentinelBrokerPlugin的Bean配置");
+        }
+        if (blockStrategy == BlockStrategy.OVERFLOW) {
+            checkProperty("overflowSuffix", overflowSuffix);
+        }
+        if (blockStrategy == BlockStrategy.SCHEDULE && !broker.getBrokerService().isSchedulerSupport()) {
+            log.warn(LOG_PRIFEX + "blockStrategy=SCHEDULE but schedulerSupport of broker is false, blocked messages will be delivered without delay");
+        }
 
         log("InitExecutor.doInit start");
         InitExecutor.doInit();// Env中static块调了该方法，但在初始化才执行，这里为了启动时就能访问http规则提前调用
         log("InitExecutor.doInit end");
 
+        final MessagePacer messagePacer = pacingEnabled ? new MessagePacer() : null;
+
         log("FlowRule zookeeper register start");
         ReadableDataSource<String, List<FlowRule>> flowRuleDataSource = new ZookeeperDataSource<List<FlowRule>>(zkServer, mqFlowRulePath,
             new Converter<String, List<FlowRule>>() {
                 @Override
                 public List<FlowRule> convert(String source) {
-                    return JSON.parseObject(source, new TypeReference<List<FlowRule>>(){});
+                    List<FlowRule> rules = JSON.parseObject(source, new TypeReference<List<FlowRule>>(){});
+                    return messagePacer != null ? messagePacer.loadRules(rules) : rules;
                 }
             }
         );
         FlowRuleManager.register2Property(flowRuleDataSource.getProperty());
+        DestinationPatternManager.register2Property(DestinationPatternManager.TYPE_FLOW, flowRuleDataSource.getProperty());
         log("FlowRule zookeeper register end");
 
         log("DegradeRule zookeeper register start");
@@ -80,6 +186,7 @@ public class SentinelBrokerPlugin implements BrokerPlugin {
             }
         );
         DegradeRuleManager.register2Property(degradeRuleDataSource.getProperty());
+        DestinationPatternManager.register2Property(DestinationPatternManager.TYPE_DEGRADE, degradeRuleDataSource.getProperty());
         log("DegradeRule zookeeper register end");
 
         log("SystemRule zookeeper register start");
@@ -94,8 +201,90 @@ public class SentinelBrokerPlugin implements BrokerPlugin {
         SystemRuleManager.register2Property(systemRuleDataSource.getProperty());
         log("SystemRule zookeeper register end");
 
+        if (StringUtils.hasText(paramFlowKey)) {
+            log("ParamFlowRule zookeeper register start");
+            ReadableDataSource<String, List<ParamFlowRule>> paramFlowRuleDataSource = new ZookeeperDataSource<List<ParamFlowRule>>(zkServer, mqParamFlowRulePath,
+                new Converter<String, List<ParamFlowRule>>() {
+                    @Override
+                    public List<ParamFlowRule> convert(String source) {
+                        List<ParamFlowRule> rules = JSON.parseObject(source, new TypeReference<List<ParamFlowRule>>(){});
+                        if (rules != null) {
+                            // 发送时只传一个参数，规则未配置paramIdx时默认为0
+                            for (ParamFlowRule rule : rules) {
+                                if (rule != null && rule.getParamIdx() == null) {
+                                    rule.setParamIdx(0);
+                                }
+                            }
+                        }
+                        return rules;
+                    }
+                }
+            );
+            ParamFlowRuleManager.register2Property(paramFlowRuleDataSource.getProperty());
+            DestinationPatternManager.register2Property(DestinationPatternManager.TYPE_PARAM_FLOW, paramFlowRuleDataSource.getProperty());
+            log("ParamFlowRule zookeeper register end");
+        }
+
+        SentinelBrokerFilter sentinelBrokerFilter = new SentinelBrokerFilter(broker, messagePacer);
+        sentinelBrokerFilter.register2Property(flowRuleDataSource.getProperty());
+        sentinelBrokerFilter.setBlockStrategy(blockStrategy);
+        sentinelBrokerFilter.setMaxWaitMs(maxWaitMs);
+        sentinelBrokerFilter.setWaitIntervalMs(waitIntervalMs);
+        sentinelBrokerFilter.setMaxWaitingCount(maxWaitingCount);
+        sentinelBrokerFilter.setOverflowSuffix(overflowSuffix);
+        sentinelBrokerFilter.setReplayIntervalMs(replayIntervalMs);
+        sentinelBrokerFilter.setReplayBatchSize(replayBatchSize);
+        sentinelBrokerFilter.setScheduleDelayMs(scheduleDelayMs);
+        if (StringUtils.hasText(excludedDestinations)) {
+            sentinelBrokerFilter.setExcludedDestinations(excludedDestinations);
+            log("excludedDestinations=" + excludedDestinations);
+        }
+        sentinelBrokerFilter.setOriginParser(originParser != null ? originParser : originType);
+        sentinelBrokerFilter.setParamFlowKey(StringUtils.hasText(paramFlowKey) ? paramFlowKey : null);
+        sentinelBrokerFilter.setBytesFlowEnabled(bytesFlowEnabled);
+        sentinelBrokerFilter.setBytesPerToken(bytesPerToken);
+        sentinelBrokerFilter.setDispatchThrottleEnabled(dispatchThrottleEnabled);
+        sentinelBrokerFilter.setBacklogThrottleEnabled(backlogThrottleEnabled);
+        sentinelBrokerFilter.setUsageProtectionEnabled(usageProtectionEnabled);
+        sentinelBrokerFilter.setMemoryUsageWatermark(memoryUsageWatermark);
+        sentinelBrokerFilter.setStoreUsageWatermark(storeUsageWatermark);
+        sentinelBrokerFilter.setTempUsageWatermark(tempUsageWatermark);
+        sentinelBrokerFilter.setMaxBacklogSeconds(maxBacklogSeconds);
+        sentinelBrokerFilter.setMaxMemoryPercent(maxMemoryPercent);
+        sentinelBrokerFilter.setDispatchMaxWaitMs(dispatchMaxWaitMs);
+        log("blockStrategy=" + blockStrategy + ",maxWaitMs=" + maxWaitMs + ",waitIntervalMs=" + waitIntervalMs + ",maxWaitingCount=" + maxWaitingCount
+            + ",pacingEnabled=" + pacingEnabled);
+        if (blockStrategy == BlockStrategy.OVERFLOW) {
+            log("overflowSuffix=" + overflowSuffix + ",replayIntervalMs=" + replayIntervalMs + ",replayBatchSize=" + replayBatchSize);
+        } else if (blockStrategy == BlockStrategy.SCHEDULE) {
+            log("scheduleDelayMs=" + scheduleDelayMs);
+        }
+        if (originParser != null || originType != null) {
+            log("originParser=" + (originParser != null ? originParser.getClass().getName() : originType));
+        }
+        if (StringUtils.hasText(paramFlowKey)) {
+            log("paramFlowKey=" + paramFlowKey);
+        }
+        if (bytesFlowEnabled) {
+            log("bytesFlowEnabled, bytesPerToken=" + bytesPerToken);
+        }
+        if (usageProtectionEnabled) {
+            log("usageProtectionEnabled, memoryUsageWatermark=" + memoryUsageWatermark + ",storeUsageWatermark=" + storeUsageWatermark
+                + ",tempUsageWatermark=" + tempUsageWatermark);
+        }
+        if (backlogThrottleEnabled) {
+            log("backlogThrottleEnabled, maxBacklogSeconds=" + maxBacklogSeconds + ",maxMemoryPercent=" + maxMemoryPercent);
+        }
+        if (dispatchThrottleEnabled) {
+            log("dispatchThrottleEnabled, dispatchMaxWaitMs=" + dispatchMaxWaitMs);
+        }
+        if (auditEnabled) {
+            sentinelBrokerFilter.setBlockedMessageAuditor(new BlockedMessageAuditor(auditBufferSize, auditSampleRate, auditMaxLogPerSec));
+            log("BlockedMessageAuditor enabled, bufferSize=" + auditBufferSize + ",sampleRate=" + auditSampleRate + ",maxLogPerSec=" + auditMaxLogPerSec);
+        }
+
         log("installPlugin end");
-        return new SentinelBrokerFilter(broker);
+        return sentinelBrokerFilter;
     }
 
     private void checkProperty(String name, String value) {
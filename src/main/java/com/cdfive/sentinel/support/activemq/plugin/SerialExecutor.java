@@ -0,0 +1,77 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按提交顺序串行执行任务，任务在共用的线程池中执行
+ * <p>
+ * 同一SerialExecutor的任务不会并发、按提交顺序执行，不同SerialExecutor的任务可以在线程池中并行，
+ * 用于匀速发送时同一队列的消息按到达顺序发送
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+class SerialExecutor implements Executor {
+
+    /**日志前缀*/
+    private static final String LOG_PRIFEX = "[SerialExecutor]";
+
+    /**共用的线程池*/
+    private final Executor executor;
+
+    /**待执行的任务*/
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**是否已有任务在线程池中执行*/
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RuntimeException e) {
+                running.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    log.error(LOG_PRIFEX + "task exception", e);
+                }
+            }
+        } finally {
+            running.set(false);
+            // 释放后可能有新提交的任务
+            schedule();
+        }
+    }
+}
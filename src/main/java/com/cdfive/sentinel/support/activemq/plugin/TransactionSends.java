@@ -0,0 +1,141 @@
+package com.cdfive.sentinel.support.activemq.plugin;
+
+import com.cdfive.sentinel.support.activemq.DestinationResource;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.MessageId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一个事务中发送的消息，按资源和热点参数值计数，提交时整体申请资源
+ * <p>
+ * 同一资源的消息按热点参数值分别计数，提交时每个参数值申请一次(count=该参数值的消息数量)，热点参数规则按每个参数值检查，
+ * 流控规则按资源的全部消息检查；没有热点参数的消息合并申请一次
+ * </p>
+ * @author cdfive
+ */
+class TransactionSends {
+
+    /**事务所属的连接*/
+    private final ConnectionId connectionId;
+
+    /**资源=>热点参数值=>消息数量(_bytes资源为令牌数)，按第一次发送的顺序；没有热点参数时参数值为null*/
+    private final Map<DestinationResource, Map<Object, Integer>> countMap = new LinkedHashMap<DestinationResource, Map<Object, Integer>>();
+
+    /**资源=>第一条消息的id，用于审计日志*/
+    private final Map<DestinationResource, MessageId> firstMessageIdMap = new HashMap<DestinationResource, MessageId>();
+
+    /**消息数量*/
+    private int messageCount;
+
+    /**申请的次数，即所有资源的参数值数量之和*/
+    private int entryCount;
+
+    /**两阶段提交时在prepare已检查通过*/
+    private volatile boolean admitted;
+
+    TransactionSends(ConnectionId connectionId) {
+        this.connectionId = connectionId;
+    }
+
+    /**
+     * @param args 消息的热点参数，为空数组时不检查热点参数
+     */
+    synchronized void add(DestinationResource resource, MessageId messageId, Object[] args) {
+        add(resource, args.length > 0 ? args[0] : null, 1, messageId);
+        messageCount++;
+    }
+
+    /**
+     * 按令牌数计数，用于队列名称_bytes资源，不计入消息数量
+     */
+    synchronized void addTokens(DestinationResource resource, int tokens, MessageId messageId) {
+        add(resource, null, tokens, messageId);
+    }
+
+    private void add(DestinationResource resource, Object param, int count, MessageId messageId) {
+        Map<Object, Integer> paramCountMap = countMap.get(resource);
+        if (paramCountMap == null) {
+            paramCountMap = new LinkedHashMap<Object, Integer>();
+            countMap.put(resource, paramCountMap);
+            firstMessageIdMap.put(resource, messageId);
+        }
+
+        Integer exist = paramCountMap.get(param);
+        if (exist == null) {
+            paramCountMap.put(param, count);
+            entryCount++;
+        } else {
+            paramCountMap.put(param, (int) Math.min((long) exist + count, Integer.MAX_VALUE));
+        }
+    }
+
+    ConnectionId getConnectionId() {
+        return connectionId;
+    }
+
+    synchronized List<DestinationResource> getResources() {
+        return new ArrayList<DestinationResource>(countMap.keySet());
+    }
+
+    /**
+     * 提交时依次申请的资源，每个资源的每个参数值一次
+     */
+    synchronized List<DestinationResource> getEntryResources() {
+        List<DestinationResource> resources = new ArrayList<DestinationResource>(entryCount);
+        for (Map.Entry<DestinationResource, Map<Object, Integer>> entry : countMap.entrySet()) {
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                resources.add(entry.getKey());
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * 和getEntryResources的顺序对应的消息数量
+     */
+    synchronized int[] getCounts() {
+        int[] counts = new int[entryCount];
+        int i = 0;
+        for (Map<Object, Integer> paramCountMap : countMap.values()) {
+            for (Integer count : paramCountMap.values()) {
+                counts[i++] = count;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 和getEntryResources的顺序对应的热点参数，没有热点参数时为空数组
+     */
+    synchronized Object[][] getArgs() {
+        Object[][] args = new Object[entryCount][];
+        int i = 0;
+        for (Map<Object, Integer> paramCountMap : countMap.values()) {
+            for (Object param : paramCountMap.keySet()) {
+                args[i++] = param == null ? DestinationResource.NO_ARGS : new Object[]{param};
+            }
+        }
+        return args;
+    }
+
+    synchronized MessageId getFirstMessageId(DestinationResource resource) {
+        return firstMessageIdMap.get(resource);
+    }
+
+    synchronized int getMessageCount() {
+        return messageCount;
+    }
+
+    boolean isAdmitted() {
+        return admitted;
+    }
+
+    void setAdmitted(boolean admitted) {
+        this.admitted = admitted;
+    }
+}
@@ -18,10 +18,10 @@ import com.alibaba.csp.sentinel.util.HostNameUtil;
 import com.alibaba.druid.pool.DruidDataSource;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.TypeReference;
-import com.cdfive.sentinel.support.datasource.jdbc.DegradeJdbcDataSource;
-import com.cdfive.sentinel.support.datasource.jdbc.FlowJdbcDataSource;
-import com.cdfive.sentinel.support.datasource.jdbc.SystemJdbcDataSource;
+import com.cdfive.sentinel.support.datasource.jdbc.JdbcRuleLoader;
+import com.cdfive.sentinel.support.datasource.jdbc.RuleVersionProbe;
 import com.cdfive.sentinel.support.SentinelSupportConstant;
+import com.cdfive.sentinel.support.activemq.DestinationPatternManager;
 import com.cdfive.sentinel.support.activemq.aspect.MessageListenerAspect;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -76,6 +76,14 @@ public class SentinelProperties {
     private String username;
     @Value("${sentinel.dataSource.jdbc.password:#{null}}")
     private String password;
+    @Value("${sentinel.dataSource.jdbc.refreshSec:#{null}}")
+    private Long refreshSec;// 规则刷新间隔(秒)，不配置则不刷新
+    @Value("${sentinel.dataSource.jdbc.snapshotDir:#{null}}")
+    private String snapshotDir;// 本地规则快照目录，配置后启动先加载快照再后台从数据库同步，数据库不可用时沿用快照
+    @Value("${sentinel.dataSource.jdbc.queryTimeoutSec:#{null}}")
+    private Integer queryTimeoutSec;// 查询超时时间(秒)，不配置则不超时
+    @Value("${sentinel.dataSource.jdbc.versionProbe:COUNT_AND_UPDATE_TIME}")
+    private RuleVersionProbe versionProbe;// 刷新时先探测各规则表，只读取探测值变化的表：NONE(每次读取全部表)、COUNT_AND_UPDATE_TIME(默认)、VERSION_TABLE
 
     /**DruidDataSource config*/
     @Value("${sentinel.dataSource.jdbc.initial-size:#{null}}")
@@ -210,21 +218,27 @@ public class SentinelProperties {
         if (testOnBorrow != null) { sentinelDbDataSource.setTestOnBorrow(testOnBorrow); }
         if (testWhileIdle != null) { sentinelDbDataSource.setTestWhileIdle(testWhileIdle); }
         if (testOnReturn != null) { sentinelDbDataSource.setTestOnReturn(testOnReturn); }
+        if (queryTimeoutSec != null) { sentinelDbDataSource.setQueryTimeout(queryTimeoutSec); }
+
+        // 一条sql加载应用的流控、熔断降级、系统保护规则
+        JdbcRuleLoader jdbcRuleLoader = new JdbcRuleLoader(sentinelDbDataSource, appName, ip, port, refreshSec, snapshotDir);
+        jdbcRuleLoader.setVersionProbe(versionProbe);
+        // 无论首次加载是否成功都注册，appId未找到或数据库不可用时，后台刷新成功后规则即生效
+        if (jdbcRuleLoader.getAppId() == null && snapshotDir == null) {
+            logWarn("JdbcRuleLoader can't load rules now, " + (refreshSec != null ? "rules take effect after a successful refresh"
+                : "rules won't be loaded since sentinel.dataSource.jdbc.refreshSec is not set"));
+        }
 
-        FlowJdbcDataSource flowRuleDataSource = new FlowJdbcDataSource(sentinelDbDataSource, appName, ip, port);
-        Integer appId = flowRuleDataSource.getAppId();
-        if (appId != null) {
-            FlowRuleManager.register2Property(flowRuleDataSource.getProperty());
-            WritableDataSourceRegistry.registerFlowDataSource(flowRuleDataSource);
+        FlowRuleManager.register2Property(jdbcRuleLoader.getFlowDataSource().getProperty());
+        DestinationPatternManager.register2Property(DestinationPatternManager.TYPE_FLOW, jdbcRuleLoader.getFlowDataSource().getProperty());
+        WritableDataSourceRegistry.registerFlowDataSource(jdbcRuleLoader.getFlowDataSource());
 
-            DegradeJdbcDataSource degradeJdbcDataSource = new DegradeJdbcDataSource(sentinelDbDataSource, appId, appName, ip, port);
-            DegradeRuleManager.register2Property(degradeJdbcDataSource.getProperty());
-            WritableDataSourceRegistry.registerDegradeDataSource(degradeJdbcDataSource);
+        DegradeRuleManager.register2Property(jdbcRuleLoader.getDegradeDataSource().getProperty());
+        DestinationPatternManager.register2Property(DestinationPatternManager.TYPE_DEGRADE, jdbcRuleLoader.getDegradeDataSource().getProperty());
+        WritableDataSourceRegistry.registerDegradeDataSource(jdbcRuleLoader.getDegradeDataSource());
 
-            SystemJdbcDataSource systemJdbcDataSource = new SystemJdbcDataSource(sentinelDbDataSource, appId, appName, ip, port);
-            SystemRuleManager.register2Property(systemJdbcDataSource.getProperty());
-            WritableDataSourceRegistry.registerSystemDataSource(systemJdbcDataSource);
-        }
+        SystemRuleManager.register2Property(jdbcRuleLoader.getSystemDataSource().getProperty());
+        WritableDataSourceRegistry.registerSystemDataSource(jdbcRuleLoader.getSystemDataSource());
     }
 
     private void initZookeeperDataSource() {
@@ -256,6 +270,7 @@ public class SentinelProperties {
                 }
             });
             FlowRuleManager.register2Property(flowRuleDataSource.getProperty());
+            DestinationPatternManager.register2Property(name + "-" + DestinationPatternManager.TYPE_FLOW, flowRuleDataSource.getProperty());
 
             ReadableDataSource<String, List<DegradeRule>> degradeRuleDataSource = new ZookeeperDataSource<List<DegradeRule>>(zookeeperUrl, degradePath,
                 new Converter<String, List<DegradeRule>>() {
@@ -266,6 +281,7 @@ public class SentinelProperties {
                 }
             );
             DegradeRuleManager.register2Property(degradeRuleDataSource.getProperty());
+            DestinationPatternManager.register2Property(name + "-" + DestinationPatternManager.TYPE_DEGRADE, degradeRuleDataSource.getProperty());
 
             ReadableDataSource<String, List<SystemRule>> systemRuleDataSource = new ZookeeperDataSource<List<SystemRule>>(zookeeperUrl, systemPath,
                 new Converter<String, List<SystemRule>>() {
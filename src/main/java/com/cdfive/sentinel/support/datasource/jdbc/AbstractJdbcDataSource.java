@@ -1,6 +1,5 @@
 package com.cdfive.sentinel.support.datasource.jdbc;
 
-import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
 import com.alibaba.csp.sentinel.datasource.ReadableDataSource;
 import com.alibaba.csp.sentinel.datasource.WritableDataSource;
 import com.alibaba.csp.sentinel.log.RecordLog;
@@ -14,19 +13,27 @@ import lombok.extern.slf4j.Slf4j;
 import javax.sql.DataSource;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * abstract JdbcDataSource
+ * <p>
+ * The refresh path maps the ResultSet to XxxRule directly by mapRow, the column indexes are resolved once per
+ * ResultSet, readSource and convert are kept for ReadableDataSource.
+ * </p>
+ * @param <R> the rule type, the value of the data source is List<R>
  * @author cdfive
  */
 @Slf4j
-public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<List<Map<String, Object>>, T>, WritableDataSource<T> {
+public abstract class AbstractJdbcDataSource<R> implements ReadableDataSource<List<Map<String, Object>>, List<R>>, WritableDataSource<List<R>>, JdbcRefreshable {
 
     /**
      * sql: find app_id by appName,ip,port, only enabled and not deleted
@@ -35,17 +42,98 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
     /**
      * sql: find rule list by app_id, only enabled and not deleted
      */
-    private static final String READ_RULE_SQL = "SELECT * FROM %s WHERE app_id=? AND enabled=1 AND deleted=0";
+    private static final String READ_RULE_SQL = "SELECT * FROM %s WHERE app_id=? AND enabled=1 AND deleted=0 ORDER BY id";
     /**
-     * sql: delete rule list by app_id
+     * sql: find changed rule list by app_id and update_time, include disabled and deleted for incremental update
      */
-    private static final String DELETE_RULE_SQL = "DELETE FROM %s WHERE app_id=?";
+    private static final String READ_CHANGED_RULE_SQL = "SELECT * FROM %s WHERE app_id=? AND update_time>=? ORDER BY id";
+    /**
+     * sql: probe count, max id and max update_time of rule table by app_id
+     */
+    private static final String PROBE_COUNT_AND_UPDATE_TIME_SQL = "SELECT COUNT(*) AS rule_count,MAX(id) AS max_id,MAX(update_time) AS max_update_time FROM %s WHERE app_id=?";
+    /**
+     * sql: probe version of rule table by app_id
+     */
+    private static final String PROBE_VERSION_SQL = "SELECT version FROM sentinel_rule_version WHERE app_id=? AND rule_table=?";
+    /**
+     * sql: increase version of rule table by app_id
+     */
+    private static final String INCREASE_VERSION_SQL = "UPDATE sentinel_rule_version SET version=version+1,update_time=NOW() WHERE app_id=? AND rule_table=?";
+    /**
+     * sql: init version of rule table by app_id
+     */
+    private static final String INSERT_VERSION_SQL = "INSERT INTO sentinel_rule_version (app_id,rule_table,version,update_time) VALUES(?,?,1,NOW())";
+    /**
+     * sql: find stored rule list by app_id for write, include disabled but not deleted
+     */
+    private static final String READ_STORED_RULE_SQL = "SELECT * FROM %s WHERE app_id=? AND deleted=0";
+    /**
+     * sql: update rule by id, the set clause is generated by rule columns @see initUpdateSql
+     */
+    private static final String UPDATE_RULE_SQL = "UPDATE %s SET %s,update_time=NOW(),change_status=2,enabled=1 WHERE id=?";
+    /**
+     * sql: soft delete rule by id
+     */
+    private static final String SOFT_DELETE_RULE_SQL = "UPDATE %s SET update_time=NOW(),change_status=3,deleted=1 WHERE id=?";
+
+    /**
+     * the max number of rows in one jdbc batch when write
+     */
+    private static final int WRITE_BATCH_SIZE = 500;
+
+    /**
+     * the default interval in second of full resync in incremental mode, 5 minutes
+     */
+    private static final Long DEFAULT_FULL_RESYNC_SEC = 300L;
+
+    /**
+     * the overlap in millisecond when query changed rows by watermark,
+     * for the rows committed later than their update_time, re-read rows are merged idempotently
+     */
+    private static final long INCREMENTAL_OVERLAP_MS = 5000L;
+
+    /**
+     * the meta columns besides rule columns, used by refresh
+     */
+    private static final String[] META_COLUMNS = {"id", "update_time", "enabled", "deleted"};
+    private static final int META_ID = 0;
+    private static final int META_UPDATE_TIME = 1;
+    private static final int META_ENABLED = 2;
+    private static final int META_DELETED = 3;
+
+    /**
+     * map value parse callbacks, stateless
+     */
+    private static final ParseMapValCallback<String> STRING_CALLBACK = new ParseMapValCallback<String>() {
+        @Override
+        public String parseVal(String strVal) {
+            return strVal;
+        }
+    };
+    private static final ParseMapValCallback<Integer> INT_CALLBACK = new ParseMapValCallback<Integer>() {
+        @Override
+        public Integer parseVal(String strVal) {
+            return Integer.parseInt(strVal);
+        }
+    };
+    private static final ParseMapValCallback<Long> LONG_CALLBACK = new ParseMapValCallback<Long>() {
+        @Override
+        public Long parseVal(String strVal) {
+            return Long.parseLong(strVal);
+        }
+    };
+    private static final ParseMapValCallback<Double> DOUBLE_CALLBACK = new ParseMapValCallback<Double>() {
+        @Override
+        public Double parseVal(String strVal) {
+            return Double.parseDouble(strVal);
+        }
+    };
 
 
     /**for getProperty() and update value, use DynamicSentinelProperty as implement*/
     @Getter
     @Setter
-    private SentinelProperty<T> property;
+    private SentinelProperty<List<R>> property;
 
     /**a standard javax.sql.DataSource*/
     @Getter
@@ -82,10 +170,71 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
     @Setter
     private Long refreshSec;
 
-    /**the refresh backgound thread service*/
+    /**
+     * incremental mode, if true only query the rows changed since the watermark(max update_time) and merge them,
+     * rows with change_status or deleted changed must also update update_time, default false
+     */
+    @Getter
+    @Setter
+    private boolean incremental;
+
+    /**the interval in second of full resync in incremental mode, default 300 seconds*/
+    @Getter
+    @Setter
+    private Long fullResyncSec = DEFAULT_FULL_RESYNC_SEC;
+
+    /**the timeout in second of rule query, if null no timeout*/
+    @Getter
+    @Setter
+    private Integer queryTimeoutSec;
+
+    /**the jdbc fetch size of rule query, if null use the driver default, for MySQL need useCursorFetch=true*/
+    @Getter
+    @Setter
+    private Integer fetchSize;
+
+    /**the effective rules by id in incremental mode, null if full resync needed*/
+    private TreeMap<Long, R> ruleMap;
+
+    /**the max update_time of rows read in incremental mode*/
+    private Timestamp watermark;
+
+    /**the time in millisecond of last full resync in incremental mode*/
+    private long lastFullResyncTime;
+
+    /**the probe before reading rules, only read rules when the probe value changed, default NONE*/
     @Getter
     @Setter
-    private ScheduledExecutorService refreshService;
+    private RuleVersionProbe versionProbe = RuleVersionProbe.NONE;
+
+    /**the probe value of the last applied rule rows*/
+    private volatile Map<String, Object> lastProbeValue;
+
+    /**the last applied rules, null if never applied*/
+    private volatile List<R> lastRules;
+
+    /**whether rules were applied*/
+    private volatile boolean applied;
+
+    /**the pool which shares resource,limit_app... strings across refreshes*/
+    private final RuleStringPool stringPool = new RuleStringPool();
+
+    /**count of refreshes skipped since the rules unchanged*/
+    private final AtomicLong skippedRefreshCount = new AtomicLong();
+
+    /**count of refreshes applied to property*/
+    private final AtomicLong appliedRefreshCount = new AtomicLong();
+
+    /**the directory of local snapshot file, if null no snapshot*/
+    @Getter
+    private String snapshotDir;
+
+    /**the local snapshot file of the last applied rules, null if no snapshot*/
+    private RuleSnapshotFile snapshotFile;
+
+    /**the shared scheduler which refresh rules in background*/
+    @Getter
+    private JdbcRefreshScheduler refreshScheduler;
 
 
     /**
@@ -137,6 +286,23 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
      * if appId is null, query from database by appName,ip and prot
      */
     public AbstractJdbcDataSource(DataSource dbDataSource, Integer appId, String appName, String ip, Integer port, Long refreshSec) {
+        this(dbDataSource, appId, appName, ip, port, refreshSec, null);
+    }
+
+    /**
+     * constructor
+     * @param dbDataSource a standard javax.sql.DataSource
+     * @param appId application id
+     * @param appName application name
+     * @param ip the ip of server which the app deployed
+     * @param port the port the app used
+     * @param refreshSec the interval in second which is used for refresh the rules, if null needn't refresh
+     * @param snapshotDir the directory of local snapshot file, if null no snapshot
+     *
+     * if appId is null, query from database by appName,ip and prot
+     * if snapshotDir is not null, the rules are loaded from the snapshot file first, then reconciled with database in background
+     */
+    public AbstractJdbcDataSource(DataSource dbDataSource, Integer appId, String appName, String ip, Integer port, Long refreshSec, String snapshotDir) {
         checkNotNull(dbDataSource, "javax.sql.DataSource dbDataSource can't be null");
         checkNotEmpty(appName, "appName can't be null or empty");
 
@@ -150,11 +316,24 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
             check(refreshSec > 0, "refreshSec must > 0");
         }
 
-        this.property = new DynamicSentinelProperty<T>();
+        this.property = new DynamicSentinelProperty<List<R>>();
 
         this.ruleTableName = initRuleTableName();
         checkNotEmpty(ruleTableName, "ruleTableName can't be null or empty");
 
+        if (snapshotDir != null) {
+            this.appId = appId;
+            initSnapshot(snapshotDir);
+
+            refreshScheduler = JdbcRefreshScheduler.getInstance();
+            if (refreshSec != null) {
+                refreshScheduler.register(this, refreshSec * 1000, true);
+            } else {
+                refreshScheduler.refreshOnce(this);
+            }
+            return;
+        }
+
         if (appId == null) {
             if (!initAppId()) {
                 return;
@@ -163,13 +342,32 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
             this.appId = appId;
         }
 
-        loadData();
+        loadData(null);
 
         if (refreshSec != null) {
             startRefreshService();
         }
     }
 
+    /**
+     * constructor for JdbcRuleLoader, neither load nor refresh, the rules are loaded by the loader
+     * @param ruleLoader the loader which loads all types of rules in one statement
+     */
+    protected AbstractJdbcDataSource(JdbcRuleLoader ruleLoader) {
+        this.dbDataSource = ruleLoader.getDbDataSource();
+        this.appName = ruleLoader.getAppName();
+        this.ip = ruleLoader.getIp();
+        this.port = ruleLoader.getPort();
+        this.property = new DynamicSentinelProperty<List<R>>();
+
+        this.ruleTableName = initRuleTableName();
+        checkNotEmpty(ruleTableName, "ruleTableName can't be null or empty");
+
+        if (ruleLoader.getSnapshotDir() != null) {
+            initSnapshot(ruleLoader.getSnapshotDir());
+        }
+    }
+
     /**
      * query app id from db by appName,ip,port
      * @return true-init success false-init failed
@@ -189,71 +387,396 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
     }
 
     /**
-     * load data and update property value
+     * load rules and update property value
+     * <p>
+     * if the rules are the same as the last applied, skip update property value
+     * </p>
+     * @param connection the connection shared by the refresh scheduler, if null get connection from dbDataSource
+     * @return the result of load, the property value is kept if failed
      */
-    private void loadData() {
+    private RefreshResult loadData(Connection connection) {
         try {
-            T t = loadConfig();
-            getProperty().updateValue(t);
+            if (appId == null && !initAppId()) {
+                return RefreshResult.FAILED;
+            }
+
+            Map<String, Object> probeValue = null;
+            if (versionProbe != null && versionProbe != RuleVersionProbe.NONE && !isFullResyncDue(System.currentTimeMillis())) {
+                probeValue = probe(connection);
+                if (isProbeUnchanged(probeValue)) {
+                    return RefreshResult.UNCHANGED;
+                }
+            }
+
+            List<R> rules = incremental ? readIncrementalRules(connection) : readFullRules(connection);
+            lastProbeValue = probeValue;
+            return applyRules(rules) ? RefreshResult.CHANGED : RefreshResult.UNCHANGED;
         } catch (Exception e) {
             log.error(SentinelSupportConstant.LOG_PRIFEX + "loadData exception", e);
             RecordLog.warn("loadData exception", e);
+            return RefreshResult.FAILED;
         }
     }
 
     /**
-     * start background thread to refresh
+     * update property value, skip if the rules are the same as the last applied
+     * @param rules the effective rules
+     * @return true-updated false-skipped
      */
-    private void startRefreshService() {
-        refreshService = Executors.newScheduledThreadPool(1,
-                new NamedThreadFactory("sentinel-datasource-auto-refresh-task", true));
-        refreshService.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                loadData();
+    boolean applyRules(List<R> rules) {
+        if (!updateRules(rules)) {
+            return false;
+        }
+
+        saveSnapshot(rules);
+        return true;
+    }
+
+    /**
+     * update property value
+     * @return true-updated false-skipped since the rules are the same as the last applied
+     */
+    private boolean updateRules(List<R> rules) {
+        List<R> value = rules.isEmpty() ? null : rules;
+        if (applied && (value == null ? lastRules == null : value.equals(lastRules))) {
+            skippedRefreshCount.incrementAndGet();
+            return false;
+        }
+
+        getProperty().updateValue(value);
+        lastRules = value;
+        applied = true;
+        appliedRefreshCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * init the snapshot file and load rules from it, the file is named by appName,ip,port since appId may be unknown
+     */
+    private void initSnapshot(String snapshotDir) {
+        this.snapshotDir = snapshotDir;
+        this.snapshotFile = new RuleSnapshotFile(snapshotDir, appName + "-" + ip + "-" + port + "-" + ruleTableName);
+
+        long start = System.currentTimeMillis();
+        try {
+            List<Map<String, Object>> list = snapshotFile.read();
+            if (list == null) {
+                log.info(SentinelSupportConstant.LOG_PRIFEX + "snapshot file " + snapshotFile.getFile() + " not found");
+                return;
+            }
+
+            List<R> rules = convert(list);
+            updateRules(rules != null ? rules : Collections.<R>emptyList());
+            log.info(SentinelSupportConstant.LOG_PRIFEX + list.size() + " rules load from snapshot file " + snapshotFile.getFile()
+                    + " cost " + (System.currentTimeMillis() - start) / 1000.0 + "s");
+        } catch (Exception e) {
+            log.warn(SentinelSupportConstant.LOG_PRIFEX + "load snapshot file " + snapshotFile.getFile() + " exception", e);
+            RecordLog.warn("load snapshot file exception", e);
+        }
+    }
+
+    /**
+     * save the applied rules to the snapshot file, the values are the insert sql parameters after app_id
+     */
+    private void saveSnapshot(List<R> rules) {
+        if (snapshotFile == null) {
+            return;
+        }
+
+        try {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            List<Object[]> sqlParametersList = initInsertSqlParametersList(rules);
+            if (sqlParametersList != null) {
+                for (Object[] sqlParameters : sqlParametersList) {
+                    rows.add(Arrays.copyOfRange(sqlParameters, 1, sqlParameters.length));
+                }
             }
-        }, refreshSec, refreshSec, TimeUnit.SECONDS);
+            snapshotFile.write(initRuleColumns(), rows);
+        } catch (Exception e) {
+            log.warn(SentinelSupportConstant.LOG_PRIFEX + "save snapshot file " + snapshotFile.getFile() + " exception", e);
+            RecordLog.warn("save snapshot file exception", e);
+        }
+    }
+
+    /**
+     * register to the shared refresh scheduler
+     */
+    private void startRefreshService() {
+        refreshScheduler = JdbcRefreshScheduler.getInstance();
+        refreshScheduler.register(this, refreshSec * 1000);
+    }
+
+    /**
+     * refresh rules by the refresh scheduler
+     * @param connection the connection shared with other data sources refreshed in the same tick
+     */
+    @Override
+    public RefreshResult refresh(Connection connection) {
+        return loadData(connection);
     }
 
     @Override
-    public T loadConfig() throws Exception {
+    public List<R> loadConfig() throws Exception {
         List<Map<String, Object>> list = readSource();
         return convert(list);
     }
 
+    /**
+     * query all effective rule rows of the app
+     */
     @Override
     public List<Map<String, Object>> readSource() throws Exception {
         long start = System.currentTimeMillis();
-        List<Map<String, Object>> list = findListMapBySql(String.format(READ_RULE_SQL, ruleTableName), new Object[]{appId});
-        int count = list != null ? 0 : list.size();
+        List<Map<String, Object>> list = findListMapBySql(null, String.format(READ_RULE_SQL, ruleTableName), new Object[]{appId});
+        int count = list == null ? 0 : list.size();
         log.info(SentinelSupportConstant.LOG_PRIFEX + "app(" + appId + ") " + count + " rules readSource cost "+ (System.currentTimeMillis() - start) / 1000.0 + "s");
         return list;
     }
 
+    /**
+     * query all effective rules of the app
+     */
+    private List<R> readFullRules(Connection connection) throws SQLException {
+        long start = System.currentTimeMillis();
+        final List<R> rules = new ArrayList<R>();
+        final TreeMap<Long, R> newRuleMap = incremental ? new TreeMap<Long, R>() : null;
+        final Timestamp[] newWatermark = new Timestamp[1];
+        queryRules(connection, String.format(READ_RULE_SQL, ruleTableName), new Object[]{appId}, new RuleRowHandler<R>() {
+            @Override
+            public void handle(long id, Timestamp updateTime, R rule) {
+                rules.add(rule);
+                if (newRuleMap != null) {
+                    newRuleMap.put(id, rule);
+                    newWatermark[0] = maxTimestamp(newWatermark[0], updateTime);
+                }
+            }
+        });
+
+        ruleMap = newRuleMap;
+        if (newRuleMap != null) {
+            watermark = newWatermark[0];
+            lastFullResyncTime = start;
+        }
+        log.info(SentinelSupportConstant.LOG_PRIFEX + "app(" + appId + ") " + rules.size() + " rules read cost "+ (System.currentTimeMillis() - start) / 1000.0 + "s");
+        return rules;
+    }
+
+    /**
+     * query the rules changed since the watermark and merge them into the effective rules
+     * <p>
+     * full resync if never synced, no watermark or fullResyncSec passed, which also covers physical deleted rows
+     * </p>
+     */
+    private synchronized List<R> readIncrementalRules(Connection connection) throws SQLException {
+        long start = System.currentTimeMillis();
+        if (ruleMap == null || watermark == null || isFullResyncDue(start)) {
+            return readFullRules(connection);
+        }
+
+        // merge into a copy, the effective rules and the watermark are kept if the query or mapping fails partway
+        final TreeMap<Long, R> newRuleMap = new TreeMap<Long, R>(ruleMap);
+        final Timestamp[] newWatermark = new Timestamp[]{watermark};
+        final int[] changedCount = new int[1];
+        Timestamp since = new Timestamp(watermark.getTime() - INCREMENTAL_OVERLAP_MS);
+        queryRules(connection, String.format(READ_CHANGED_RULE_SQL, ruleTableName), new Object[]{appId, since}, new RuleRowHandler<R>() {
+            @Override
+            public void handle(long id, Timestamp updateTime, R rule) {
+                if (rule != null) {
+                    newRuleMap.put(id, rule);
+                } else {
+                    newRuleMap.remove(id);
+                }
+                newWatermark[0] = maxTimestamp(newWatermark[0], updateTime);
+                changedCount[0]++;
+            }
+        });
+
+        ruleMap = newRuleMap;
+        watermark = newWatermark[0];
+        if (changedCount[0] > 0) {
+            log.info(SentinelSupportConstant.LOG_PRIFEX + "app(" + appId + ") " + changedCount[0] + " changed rules merged, "
+                    + newRuleMap.size() + " rules read cost " + (System.currentTimeMillis() - start) / 1000.0 + "s");
+        }
+        return new ArrayList<R>(newRuleMap.values());
+    }
+
+    /**
+     * query rules and map each row by mapRow
+     * <p>
+     * the rule columns and meta columns are resolved once, the row is effective if enabled=1 and deleted=0 or the
+     * columns are not selected, the rule of not effective row is null
+     * </p>
+     */
+    private void queryRules(Connection sharedConnection, String sql, Object[] sqlParameters, RuleRowHandler<R> handler) throws SQLException {
+        Connection connection = sharedConnection;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        try {
+            if (connection == null) {
+                connection = dbDataSource.getConnection();
+            }
+            preparedStatement = connection.prepareStatement(sql);
+            if (queryTimeoutSec != null) {
+                preparedStatement.setQueryTimeout(queryTimeoutSec);
+            }
+            if (fetchSize != null) {
+                preparedStatement.setFetchSize(fetchSize);
+            }
+            for (int i = 0; i < sqlParameters.length; i++) {
+                preparedStatement.setObject(i + 1, sqlParameters[i]);
+            }
+
+            resultSet = preparedStatement.executeQuery();
+            ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+            int[] columnIndexes = resolveRuleColumnIndexes(resultSetMetaData);
+            int[] metaIndexes = resolveColumnIndexes(resultSetMetaData, META_COLUMNS);
+
+            beginMapRows();
+            while (resultSet.next()) {
+                boolean effective = (metaIndexes[META_ENABLED] == 0 || resultSet.getInt(metaIndexes[META_ENABLED]) == 1)
+                        && (metaIndexes[META_DELETED] == 0 || resultSet.getInt(metaIndexes[META_DELETED]) == 0);
+                long id = metaIndexes[META_ID] == 0 ? 0L : resultSet.getLong(metaIndexes[META_ID]);
+                Timestamp updateTime = metaIndexes[META_UPDATE_TIME] == 0 ? null : resultSet.getTimestamp(metaIndexes[META_UPDATE_TIME]);
+                handler.handle(id, updateTime, effective ? mapRow(resultSet, columnIndexes) : null);
+            }
+        } finally {
+            if (sharedConnection == null) {
+                closeJdbcObjects(resultSet, preparedStatement, connection);
+            } else {
+                closeJdbcObjects(resultSet, preparedStatement);
+            }
+        }
+    }
+
+    /**
+     * the indexes of rule columns in the ResultSet, 0 if absent
+     */
+    int[] resolveRuleColumnIndexes(ResultSetMetaData resultSetMetaData) throws SQLException {
+        return resolveColumnIndexes(resultSetMetaData, initRuleColumns());
+    }
+
+    /**
+     * begin mapping rows of a query, strings not used since the last query are released from the string pool
+     */
+    void beginMapRows() {
+        stringPool.rotate();
+    }
+
+    /**
+     * whether full resync is due in incremental mode
+     */
+    private boolean isFullResyncDue(long now) {
+        return incremental && fullResyncSec != null && now - lastFullResyncTime >= fullResyncSec * 1000;
+    }
+
+    /**
+     * query the probe value by versionProbe, null if no probe value
+     */
+    private Map<String, Object> probe(Connection connection) {
+        List<Map<String, Object>> list;
+        if (versionProbe == RuleVersionProbe.VERSION_TABLE) {
+            list = findListMapBySql(connection, PROBE_VERSION_SQL, new Object[]{appId, ruleTableName});
+        } else {
+            list = findListMapBySql(connection, String.format(PROBE_COUNT_AND_UPDATE_TIME_SQL, ruleTableName), new Object[]{appId});
+        }
+        return list.size() > 0 ? list.get(0) : null;
+    }
+
+    /**
+     * whether the probe value is the same as the one of the last applied rules, the refresh is counted as skipped if true
+     * @param probeValue the probe value, null if no probe value
+     */
+    boolean isProbeUnchanged(Map<String, Object> probeValue) {
+        if (probeValue == null || !probeValue.equals(lastProbeValue) || isRecentlyUpdated(probeValue)) {
+            return false;
+        }
+
+        skippedRefreshCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * record the probe value of the rules applied by JdbcRuleLoader
+     */
+    void setLastProbeValue(Map<String, Object> probeValue) {
+        lastProbeValue = probeValue;
+    }
+
+    /**
+     * whether the max update_time of the probe value is within INCREMENTAL_OVERLAP_MS
+     * <p>
+     * update_time is usually stored in seconds, an update in the same second as the last read keeps the count and
+     * max update_time unchanged, so the probe is not trusted until the max update_time is older than the overlap window
+     * </p>
+     */
+    private boolean isRecentlyUpdated(Map<String, Object> probeValue) {
+        if (versionProbe != RuleVersionProbe.COUNT_AND_UPDATE_TIME) {
+            return false;
+        }
+
+        for (Map.Entry<String, Object> entry : probeValue.entrySet()) {
+            if ("max_update_time".equalsIgnoreCase(entry.getKey()) && entry.getValue() instanceof Date) {
+                return System.currentTimeMillis() - ((Date) entry.getValue()).getTime() < INCREMENTAL_OVERLAP_MS;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the max of timestamp and the update time, update time may be null
+     */
+    private Timestamp maxTimestamp(Timestamp timestamp, Timestamp updateTime) {
+        if (updateTime == null) {
+            return timestamp;
+        }
+        return timestamp == null || updateTime.after(timestamp) ? updateTime : timestamp;
+    }
+
+    /**
+     * count of refreshes skipped since the rules unchanged
+     */
+    public long getSkippedRefreshCount() {
+        return skippedRefreshCount.get();
+    }
+
+    /**
+     * count of refreshes applied to property
+     */
+    public long getAppliedRefreshCount() {
+        return appliedRefreshCount.get();
+    }
+
     @Override
-    public SentinelProperty<T> getProperty() {
+    public SentinelProperty<List<R>> getProperty() {
         return property;
     }
 
+    /**
+     * write rules to database
+     * <p>
+     * diff the new rules with the stored rules of the app, and only apply the changed rows in one transaction:
+     * unchanged rows are kept, changed rows reuse the stored rows by update, extra rows are inserted,
+     * and the rest stored rows are soft deleted. Insert, update and delete are executed as jdbc batches.
+     * </p>
+     */
     @Override
-    public void write(T value) throws Exception {
-        long start = System.currentTimeMillis();
-        String deleteSql = String.format(DELETE_RULE_SQL, ruleTableName);
-        Object[] deleteSqlParameters = new Object[]{appId};
-        String insertSql = initInsertSql();
-        List<Object[]> insertSqlParametersList = initInsertSqlParametersList(value);
+    public void write(List<R> value) throws Exception {
+        if (appId == null) {
+            throw new IllegalStateException("appId is null, can't write rules before the app is found in database");
+        }
 
-        deleteAndInsert(deleteSql, deleteSqlParameters, insertSql, insertSqlParametersList);
+        List<Object[]> sqlParametersList = initInsertSqlParametersList(value);
+        if (sqlParametersList == null) {
+            sqlParametersList = Collections.emptyList();
+        }
 
-        int insertCount = insertSqlParametersList == null ? 0 : insertSqlParametersList.size();
-        log.info(SentinelSupportConstant.LOG_PRIFEX + "app(" + appId + ") " + insertCount
-                + " rules write cost " + (System.currentTimeMillis() - start) / 1000.0 + "s");
+        diffAndWrite(sqlParametersList);
     }
 
     @Override
     public void close() throws Exception {
-        if (refreshService != null) {
-            refreshService.shutdownNow();
+        if (refreshScheduler != null) {
+            refreshScheduler.unregister(this);
         }
     }
 
@@ -263,13 +786,19 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
     abstract protected String initRuleTableName();
 
     /**convert List<Map<String, Object>> to List<XxxRule>*/
-    abstract protected T convert(List<Map<String, Object>> list);
+    abstract protected List<R> convert(List<Map<String, Object>> list);
+
+    /**map the current row of ResultSet to XxxRule, columnIndexes are the indexes of initRuleColumns, 0 if absent*/
+    abstract protected R mapRow(ResultSet resultSet, int[] columnIndexes) throws SQLException;
 
     /**XxxRule insert sql template*/
     abstract protected String initInsertSql();
 
     /**XxxRule insert sql parameters*/
-    abstract protected List<Object[]> initInsertSqlParametersList(T value);
+    abstract protected List<Object[]> initInsertSqlParametersList(List<R> value);
+
+    /**XxxRule columns, in the same order as the insert sql parameters after app_id, also used by JdbcRuleLoader to select*/
+    abstract protected String[] initRuleColumns();
     /**============for subClass implement end============*/
 
 
@@ -285,6 +814,9 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
         try {
             connection = dbDataSource.getConnection();
             preparedStatement = connection.prepareStatement(sql);
+            if (queryTimeoutSec != null) {
+                preparedStatement.setQueryTimeout(queryTimeoutSec);
+            }
             if (sqlParameters != null) {
                 for (int i = 0; i < sqlParameters.length; i++) {
                     preparedStatement.setObject(i + 1, sqlParameters[i]);
@@ -310,16 +842,39 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
      * Note:
      * Map's key is the column name of select sql, if has alias name grammer, alias name prefered
      * </P>
+     * @param sharedConnection the shared connection which is not closed, if null get connection from dbDataSource
      * @return List<Map<String, Object>>
      */
-    private List<Map<String, Object>> findListMapBySql(String sql, Object[] sqlParameters) {
-        Connection connection = null;
+    private List<Map<String, Object>> findListMapBySql(Connection sharedConnection, String sql, Object[] sqlParameters) {
+        Connection connection = sharedConnection;
+        try {
+            if (connection == null) {
+                connection = dbDataSource.getConnection();
+            }
+            return findListMapBySqlWithConnection(connection, sql, sqlParameters, queryTimeoutSec);
+        } catch (SQLException e) {
+            throw new RuntimeException("SQLException", e);
+        } finally {
+            if (sharedConnection == null) {
+                closeJdbcObjects(connection);
+            }
+        }
+    }
+
+    /**
+     * query list map with sql and parameters using the given connection, the connection is not closed
+     * @param queryTimeoutSec the query timeout in second, if null no timeout
+     * @return List<Map<String, Object>>
+     */
+    static List<Map<String, Object>> findListMapBySqlWithConnection(Connection connection, String sql, Object[] sqlParameters, Integer queryTimeoutSec) throws SQLException {
         PreparedStatement preparedStatement = null;
         ResultSet resultSet = null;
         List<Map<String, Object>> list;
         try {
-            connection = dbDataSource.getConnection();
             preparedStatement = connection.prepareStatement(sql);
+            if (queryTimeoutSec != null) {
+                preparedStatement.setQueryTimeout(queryTimeoutSec);
+            }
             if (sqlParameters != null) {
                 for (int i = 0; i < sqlParameters.length; i++) {
                     preparedStatement.setObject(i + 1, sqlParameters[i]);
@@ -341,60 +896,243 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
                     map.put(columnName, resultSet.getObject(i));
                 }
             }
-        } catch (SQLException e) {
-            throw new RuntimeException("SQLException", e);
         } finally {
-            closeJdbcObjects(resultSet, preparedStatement, connection);
+            closeJdbcObjects(resultSet, preparedStatement);
         }
 
         return list;
     }
 
     /**
-     * refresh data, delete first and then insert
+     * diff the new rows with the stored rows, and write the changes in one transaction
+     * @param sqlParametersList the new rows, in insert sql parameters form
      */
-    private void deleteAndInsert(String deleteSql, Object[] deleteSqlParameters, String insertSql, List<Object[]> insertSqlParametersList) {
-        Connection connection = null;
-        PreparedStatement deletePstmt = null;
-        PreparedStatement insertPstmt = null;
+    private void diffAndWrite(List<Object[]> sqlParametersList) {
+        long start = System.currentTimeMillis();
+        long readCost = 0, diffCost = 0, insertCost = 0, updateCost = 0, deleteCost = 0, commitCost = 0;
+        int unchangedCount = 0;
+        List<Object[]> insertList = new ArrayList<Object[]>();
+        List<Object[]> updateList = new ArrayList<Object[]>();
+        List<Object[]> deleteList = new ArrayList<Object[]>();
 
+        Connection connection = null;
+        Boolean autoCommit = null;
+        boolean committed = false;
         try {
             connection = dbDataSource.getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            long phaseStart = System.currentTimeMillis();
+            List<Map<String, Object>> storedList = findListMapBySqlWithConnection(connection, String.format(READ_STORED_RULE_SQL, ruleTableName), new Object[]{appId}, null);
+            readCost = System.currentTimeMillis() - phaseStart;
+
+            phaseStart = System.currentTimeMillis();
+            String[] columns = initRuleColumns();
+            // group enabled stored rows by content, disabled rows can only be reused
+            Map<List<Object>, LinkedList<Object>> storedIdsMap = new HashMap<List<Object>, LinkedList<Object>>();
+            List<Object> reusableIds = new ArrayList<Object>();
+            for (Map<String, Object> storedMap : storedList) {
+                Object id = storedMap.get("id");
+                if (getMapIntVal(storedMap, "enabled") != 1) {
+                    reusableIds.add(id);
+                    continue;
+                }
 
-            deletePstmt = connection.prepareStatement(deleteSql);
-            if (deleteSqlParameters != null) {
-                for (int i = 0; i < deleteSqlParameters.length; i++) {
-                    deletePstmt.setObject(i + 1, deleteSqlParameters[i]);
+                List<Object> contentKey = initContentKey(storedMap, columns);
+                LinkedList<Object> ids = storedIdsMap.get(contentKey);
+                if (ids == null) {
+                    ids = new LinkedList<Object>();
+                    storedIdsMap.put(contentKey, ids);
                 }
+                ids.add(id);
             }
-            deletePstmt.executeUpdate();
 
-            if (insertSqlParametersList == null || insertSqlParametersList.size() == 0) {
-                return;
+            List<Object[]> changedList = new ArrayList<Object[]>();
+            for (Object[] sqlParameters : sqlParametersList) {
+                LinkedList<Object> ids = storedIdsMap.get(initContentKey(sqlParameters));
+                if (ids != null && ids.size() > 0) {
+                    ids.removeFirst();
+                    unchangedCount++;
+                } else {
+                    changedList.add(sqlParameters);
+                }
             }
 
-            insertPstmt = connection.prepareStatement(insertSql);
-            if (insertSqlParametersList != null) {
-                for (int i = 0; i < insertSqlParametersList.size(); i++) {
-                    Object[] insertSqlParameters = insertSqlParametersList.get(i);
-                    for (int j = 0; j < insertSqlParameters.length; j++) {
-                        insertPstmt.setObject(j + 1, insertSqlParameters[j]);
-                    }
-                    insertPstmt.executeUpdate();
+            for (LinkedList<Object> ids : storedIdsMap.values()) {
+                reusableIds.addAll(ids);
+            }
+
+            int reuseCount = Math.min(changedList.size(), reusableIds.size());
+            for (int i = 0; i < changedList.size(); i++) {
+                Object[] sqlParameters = changedList.get(i);
+                if (i < reuseCount) {
+                    // update sql parameters: rule columns, then id
+                    Object[] updateSqlParameters = new Object[sqlParameters.length];
+                    System.arraycopy(sqlParameters, 1, updateSqlParameters, 0, sqlParameters.length - 1);
+                    updateSqlParameters[sqlParameters.length - 1] = reusableIds.get(i);
+                    updateList.add(updateSqlParameters);
+                } else {
+                    insertList.add(sqlParameters);
                 }
             }
+
+            for (int i = reuseCount; i < reusableIds.size(); i++) {
+                deleteList.add(new Object[]{reusableIds.get(i)});
+            }
+            diffCost = System.currentTimeMillis() - phaseStart;
+
+            phaseStart = System.currentTimeMillis();
+            executeBatch(connection, initInsertSql(), insertList);
+            insertCost = System.currentTimeMillis() - phaseStart;
+
+            phaseStart = System.currentTimeMillis();
+            executeBatch(connection, initUpdateSql(columns), updateList);
+            updateCost = System.currentTimeMillis() - phaseStart;
+
+            phaseStart = System.currentTimeMillis();
+            executeBatch(connection, String.format(SOFT_DELETE_RULE_SQL, ruleTableName), deleteList);
+            deleteCost = System.currentTimeMillis() - phaseStart;
+
+            if (versionProbe == RuleVersionProbe.VERSION_TABLE) {
+                increaseVersion(connection);
+            }
+
+            phaseStart = System.currentTimeMillis();
+            connection.commit();
+            committed = true;
+            commitCost = System.currentTimeMillis() - phaseStart;
         } catch (SQLException e) {
             throw new RuntimeException("SQLException", e);
         } finally {
-            closeJdbcObjects(insertPstmt, deletePstmt, connection);
+            if (connection != null) {
+                if (!committed) {
+                    try {
+                        connection.rollback();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                if (autoCommit != null) {
+                    try {
+                        connection.setAutoCommit(autoCommit);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            closeJdbcObjects(connection);
+        }
+
+        log.info(SentinelSupportConstant.LOG_PRIFEX + "app(" + appId + ") rules write " + insertList.size() + " inserted,"
+                + updateList.size() + " updated," + deleteList.size() + " deleted," + unchangedCount + " unchanged, cost "
+                + (System.currentTimeMillis() - start) / 1000.0 + "s(read=" + readCost / 1000.0 + "s,diff=" + diffCost / 1000.0
+                + "s,insert=" + insertCost / 1000.0 + "s,update=" + updateCost / 1000.0 + "s,delete=" + deleteCost / 1000.0
+                + "s,commit=" + commitCost / 1000.0 + "s)");
+    }
+
+    /**
+     * increase version of rule table by app_id, init version if not exists
+     */
+    private void increaseVersion(Connection connection) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        try {
+            preparedStatement = connection.prepareStatement(INCREASE_VERSION_SQL);
+            preparedStatement.setObject(1, appId);
+            preparedStatement.setObject(2, ruleTableName);
+            if (preparedStatement.executeUpdate() > 0) {
+                return;
+            }
+        } finally {
+            closeJdbcObjects(preparedStatement);
+        }
+
+        executeBatch(connection, INSERT_VERSION_SQL, Collections.singletonList(new Object[]{appId, ruleTableName}));
+    }
+
+    /**
+     * execute sql with parameters list as jdbc batches using the given connection, the connection is not closed
+     */
+    private void executeBatch(Connection connection, String sql, List<Object[]> sqlParametersList) throws SQLException {
+        if (sqlParametersList == null || sqlParametersList.size() == 0) {
+            return;
+        }
+
+        PreparedStatement preparedStatement = null;
+        try {
+            preparedStatement = connection.prepareStatement(sql);
+            for (int i = 0; i < sqlParametersList.size(); i++) {
+                Object[] sqlParameters = sqlParametersList.get(i);
+                for (int j = 0; j < sqlParameters.length; j++) {
+                    preparedStatement.setObject(j + 1, sqlParameters[j]);
+                }
+                preparedStatement.addBatch();
+
+                if ((i + 1) % WRITE_BATCH_SIZE == 0) {
+                    preparedStatement.executeBatch();
+                }
+            }
+
+            if (sqlParametersList.size() % WRITE_BATCH_SIZE != 0) {
+                preparedStatement.executeBatch();
+            }
+        } finally {
+            closeJdbcObjects(preparedStatement);
         }
     }
 
+    /**
+     * update sql by rule columns, eg: UPDATE sentinel_flow_rule SET resource=?,limit_app=?,...,update_time=NOW(),... WHERE id=?
+     */
+    private String initUpdateSql(String[] columns) {
+        StringBuilder setClause = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                setClause.append(',');
+            }
+            setClause.append(columns[i]).append("=?");
+        }
+        return String.format(UPDATE_RULE_SQL, ruleTableName, setClause.toString());
+    }
+
+    /**
+     * content key of the stored row, values of rule columns
+     */
+    private List<Object> initContentKey(Map<String, Object> map, String[] columns) {
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = normalizeContentValue(map.get(columns[i]));
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * content key of the new row, insert sql parameters without app_id
+     */
+    private List<Object> initContentKey(Object[] sqlParameters) {
+        Object[] values = new Object[sqlParameters.length - 1];
+        for (int i = 1; i < sqlParameters.length; i++) {
+            values[i - 1] = normalizeContentValue(sqlParameters[i]);
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * normalize value for compare, numbers from database may be Integer,Long,BigDecimal..., compare as double
+     */
+    private Object normalizeContentValue(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? null : value.toString();
+    }
+
     /**
      * close JDBC Objects: ResultSet,PreparedStatement,Connection...
      * @param jdbcObjects JDBC Objects: ResultSet,PreparedStatement,Connection...
      */
-    private void closeJdbcObjects(Object ... jdbcObjects) {
+    static void closeJdbcObjects(Object ... jdbcObjects) {
         if (jdbcObjects == null) {
             return;
         }
@@ -460,48 +1198,77 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
      * get string value of key from map, default value is null
      */
     protected String getMapStringVal(Map<String, Object> map, String key) {
-        return getMapVal(map, key, null, new ParseMapValCallback<String>() {
-            @Override
-            public String parseVal(String strVal) {
-                return strVal;
-            }
-        });
+        return getMapVal(map, key, null, STRING_CALLBACK);
     }
 
     /**
      * get int value of key from map, default value is 0
      */
     protected int getMapIntVal(Map<String, Object> map, String key) {
-        return getMapVal(map, key, 0, new ParseMapValCallback<Integer>() {
-            @Override
-            public Integer parseVal(String strVal) {
-                return Integer.parseInt(strVal);
-            }
-        });
+        return getMapVal(map, key, 0, INT_CALLBACK);
     }
 
     /**
      * get long value of key from map, default value is 0L
      */
     protected long getMapLongVal(Map<String, Object> map, String key) {
-        return getMapVal(map, key, 0L, new ParseMapValCallback<Long>() {
-            @Override
-            public Long parseVal(String strVal) {
-                return Long.parseLong(strVal);
-            }
-        });
+        return getMapVal(map, key, 0L, LONG_CALLBACK);
     }
 
     /**
      * get double value of key from map, default value is 0D
      */
     protected double getMapDoubleVal(Map<String, Object> map, String key) {
-        return getMapVal(map, key, 0D, new ParseMapValCallback<Double>() {
-            @Override
-            public Double parseVal(String strVal) {
-                return Double.parseDouble(strVal);
+        return getMapVal(map, key, 0D, DOUBLE_CALLBACK);
+    }
+
+    /**
+     * get string value of the column index from ResultSet, shared across refreshes, default value is null
+     */
+    protected String getResultSetStringVal(ResultSet resultSet, int columnIndex) throws SQLException {
+        return columnIndex == 0 ? null : stringPool.intern(resultSet.getString(columnIndex));
+    }
+
+    /**
+     * get int value of the column index from ResultSet, default value is 0
+     */
+    protected int getResultSetIntVal(ResultSet resultSet, int columnIndex) throws SQLException {
+        return columnIndex == 0 ? 0 : resultSet.getInt(columnIndex);
+    }
+
+    /**
+     * get long value of the column index from ResultSet, default value is 0L
+     */
+    protected long getResultSetLongVal(ResultSet resultSet, int columnIndex) throws SQLException {
+        return columnIndex == 0 ? 0L : resultSet.getLong(columnIndex);
+    }
+
+    /**
+     * get double value of the column index from ResultSet, default value is 0D
+     */
+    protected double getResultSetDoubleVal(ResultSet resultSet, int columnIndex) throws SQLException {
+        return columnIndex == 0 ? 0D : resultSet.getDouble(columnIndex);
+    }
+
+    /**
+     * the indexes of columns in the ResultSet by column label or name, 0 if absent
+     */
+    static int[] resolveColumnIndexes(ResultSetMetaData resultSetMetaData, String[] columns) throws SQLException {
+        Map<String, Integer> indexMap = new HashMap<String, Integer>();
+        for (int i = resultSetMetaData.getColumnCount(); i >= 1; i--) {// the first one preferred if duplicated
+            String columnName = resultSetMetaData.getColumnLabel(i);
+            if (columnName == null || columnName.isEmpty()) {
+                columnName = resultSetMetaData.getColumnName(i);
             }
-        });
+            indexMap.put(columnName.toLowerCase(), i);
+        }
+
+        int[] columnIndexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            Integer index = indexMap.get(columns[i].toLowerCase());
+            columnIndexes[i] = index == null ? 0 : index;
+        }
+        return columnIndexes;
     }
 
     /**
@@ -518,10 +1285,6 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
      * @return result of type T
      */
     protected static <T> T getMapVal(Map<String, Object> map, String key, T defVal, ParseMapValCallback<T> parseMapValCallback) {
-        if (!map.containsKey(key)) {
-            return defVal;
-        }
-
         Object obj = map.get(key);
         if (obj == null) {
             return defVal;
@@ -530,6 +1293,18 @@ public abstract class AbstractJdbcDataSource<T> implements ReadableDataSource<Li
         return parseMapValCallback.parseVal(obj.toString());
     }
 
+    /**
+     * handle a mapped row of rule query
+     */
+    private interface RuleRowHandler<R> {
+        /**
+         * @param id the id column, 0 if absent
+         * @param updateTime the update_time column, null if absent
+         * @param rule the mapped rule, null if the row is not effective
+         */
+        void handle(long id, Timestamp updateTime, R rule);
+    }
+
     /**
      * map value parse callback function
      *
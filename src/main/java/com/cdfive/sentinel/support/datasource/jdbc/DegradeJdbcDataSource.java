@@ -3,6 +3,8 @@ package com.cdfive.sentinel.support.datasource.jdbc;
 import com.alibaba.csp.sentinel.slots.block.degrade.DegradeRule;
 
 import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -11,13 +13,15 @@ import java.util.Map;
  * degrade rule JdbcDataSource
  * @author cdfive
  */
-public class DegradeJdbcDataSource extends AbstractJdbcDataSource<List<DegradeRule>> {
+public class DegradeJdbcDataSource extends AbstractJdbcDataSource<DegradeRule> {
 
     private static final String DEGRADE_RULE_TABLE = "sentinel_degrade_rule";
 
     private static final String INSERT_DEGRADE_RULE_SQL = "INSERT INTO sentinel_degrade_rule"
-            + " (app_id,resource,limit_app,grade,_count,time_window,create_time,update_time,enabled,deleted)"
-            + " VALUES(?,?,?,?,?,?,NOW(),NOW(),1,0)";
+            + " (app_id,resource,limit_app,grade,_count,time_window,create_time,update_time,change_status,enabled,deleted)"
+            + " VALUES(?,?,?,?,?,?,NOW(),NOW(),1,1,0)";
+
+    private static final String[] DEGRADE_RULE_COLUMNS = {"resource", "limit_app", "grade", "_count", "time_window"};
 
     public DegradeJdbcDataSource(DataSource dbDataSource, String appName, String ip, Integer port) {
         super(dbDataSource, appName, ip, port);
@@ -35,6 +39,14 @@ public class DegradeJdbcDataSource extends AbstractJdbcDataSource<List<DegradeRu
         super(dbDataSource, appId, appName, ip, port, refreshSec);
     }
 
+    public DegradeJdbcDataSource(DataSource dbDataSource, Integer appId, String appName, String ip, Integer port, Long refreshSec, String snapshotDir) {
+        super(dbDataSource, appId, appName, ip, port, refreshSec, snapshotDir);
+    }
+
+    DegradeJdbcDataSource(JdbcRuleLoader ruleLoader) {
+        super(ruleLoader);
+    }
+
     @Override
     protected String initRuleTableName() {
         return DEGRADE_RULE_TABLE;
@@ -61,11 +73,27 @@ public class DegradeJdbcDataSource extends AbstractJdbcDataSource<List<DegradeRu
         return degradeRules;
     }
 
+    @Override
+    protected DegradeRule mapRow(ResultSet resultSet, int[] columnIndexes) throws SQLException {
+        DegradeRule degradeRule = new DegradeRule();
+        degradeRule.setResource(getResultSetStringVal(resultSet, columnIndexes[0]));
+        degradeRule.setLimitApp(getResultSetStringVal(resultSet, columnIndexes[1]));
+        degradeRule.setGrade(getResultSetIntVal(resultSet, columnIndexes[2]));
+        degradeRule.setCount(getResultSetDoubleVal(resultSet, columnIndexes[3]));
+        degradeRule.setTimeWindow(getResultSetIntVal(resultSet, columnIndexes[4]));
+        return degradeRule;
+    }
+
     @Override
     protected String initInsertSql() {
         return INSERT_DEGRADE_RULE_SQL;
     }
 
+    @Override
+    protected String[] initRuleColumns() {
+        return DEGRADE_RULE_COLUMNS;
+    }
+
     @Override
     protected List<Object[]> initInsertSqlParametersList(List<DegradeRule> value) {
         if (value == null || value.size() == 0) {
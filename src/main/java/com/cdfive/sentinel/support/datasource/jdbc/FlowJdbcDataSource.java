@@ -3,6 +3,8 @@ package com.cdfive.sentinel.support.datasource.jdbc;
 import com.alibaba.csp.sentinel.slots.block.flow.FlowRule;
 
 import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -11,13 +13,15 @@ import java.util.Map;
  * flow rule JdbcDataSource
  * @author cdfive
  */
-public class FlowJdbcDataSource extends AbstractJdbcDataSource<List<FlowRule>> {
+public class FlowJdbcDataSource extends AbstractJdbcDataSource<FlowRule> {
 
     private static final String FLOW_RULE_TABLE = "sentinel_flow_rule";
 
     private static final String INSERT_FLOW_RULE_SQL = "INSERT INTO sentinel_flow_rule"
-            + " (app_id,resource,limit_app,grade,_count,strategy,ref_resource,control_behavior,warm_up_period_sec,max_queueing_time_ms,create_time,update_time,enabled,deleted)"
-            + " VALUES(?,?,?,?,?,?,?,?,?,?,NOW(),NOW(),1,0)";
+            + " (app_id,resource,limit_app,grade,_count,strategy,ref_resource,control_behavior,warm_up_period_sec,max_queueing_time_ms,create_time,update_time,change_status,enabled,deleted)"
+            + " VALUES(?,?,?,?,?,?,?,?,?,?,NOW(),NOW(),1,1,0)";
+
+    private static final String[] FLOW_RULE_COLUMNS = {"resource", "limit_app", "grade", "_count", "strategy", "ref_resource", "control_behavior", "warm_up_period_sec", "max_queueing_time_ms"};
 
     public FlowJdbcDataSource(DataSource dbDataSource, String appName, String ip, Integer port) {
         super(dbDataSource, appName, ip, port);
@@ -35,6 +39,14 @@ public class FlowJdbcDataSource extends AbstractJdbcDataSource<List<FlowRule>> {
         super(dbDataSource, appId, appName, ip, port, refreshSec);
     }
 
+    public FlowJdbcDataSource(DataSource dbDataSource, Integer appId, String appName, String ip, Integer port, Long refreshSec, String snapshotDir) {
+        super(dbDataSource, appId, appName, ip, port, refreshSec, snapshotDir);
+    }
+
+    FlowJdbcDataSource(JdbcRuleLoader ruleLoader) {
+        super(ruleLoader);
+    }
+
     @Override
     protected String initRuleTableName() {
         return FLOW_RULE_TABLE;
@@ -65,11 +77,31 @@ public class FlowJdbcDataSource extends AbstractJdbcDataSource<List<FlowRule>> {
         return flowRules;
     }
 
+    @Override
+    protected FlowRule mapRow(ResultSet resultSet, int[] columnIndexes) throws SQLException {
+        FlowRule flowRule = new FlowRule();
+        flowRule.setResource(getResultSetStringVal(resultSet, columnIndexes[0]));
+        flowRule.setLimitApp(getResultSetStringVal(resultSet, columnIndexes[1]));
+        flowRule.setGrade(getResultSetIntVal(resultSet, columnIndexes[2]));
+        flowRule.setCount(getResultSetDoubleVal(resultSet, columnIndexes[3]));
+        flowRule.setStrategy(getResultSetIntVal(resultSet, columnIndexes[4]));
+        flowRule.setRefResource(getResultSetStringVal(resultSet, columnIndexes[5]));
+        flowRule.setControlBehavior(getResultSetIntVal(resultSet, columnIndexes[6]));
+        flowRule.setWarmUpPeriodSec(getResultSetIntVal(resultSet, columnIndexes[7]));
+        flowRule.setMaxQueueingTimeMs(getResultSetIntVal(resultSet, columnIndexes[8]));
+        return flowRule;
+    }
+
     @Override
     protected String initInsertSql() {
         return INSERT_FLOW_RULE_SQL;
     }
 
+    @Override
+    protected String[] initRuleColumns() {
+        return FLOW_RULE_COLUMNS;
+    }
+
     @Override
     protected List<Object[]> initInsertSqlParametersList(List<FlowRule> value) {
         if (value == null || value.size() == 0) {
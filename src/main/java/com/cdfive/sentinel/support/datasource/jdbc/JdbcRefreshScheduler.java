@@ -0,0 +1,306 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.log.RecordLog;
+import com.cdfive.sentinel.support.SentinelSupportConstant;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * process-wide refresh scheduler of jdbc data sources
+ * <p>
+ * One tick thread checks the registered data sources every second, the due data sources are grouped by
+ * javax.sql.DataSource and each group is refreshed by one task on a bounded worker pool, sharing one connection.
+ * The refresh times are aligned to the interval with a random phase of the process, so data sources with the same
+ * interval fall on the same tick and are coalesced, while instances of the fleet don't poll at the same moment.
+ * A data source is skipped if its last refresh is still running. A data source registered by refreshOnce is refreshed
+ * on the next tick and then removed once it succeeds.
+ * </p>
+ * <p>
+ * After a change the next refresh is after fastRefreshMs, since changes often come in bursts. After consecutive
+ * failures the next refresh backs off exponentially up to maxBackoffMs with random jitter, so a slow database isn't
+ * hit by the fleet in lockstep, and the last good rules are kept meanwhile.
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+public class JdbcRefreshScheduler {
+
+    /**the interval in millisecond of tick*/
+    private static final long TICK_MS = 1000L;
+
+    /**the default number of worker threads*/
+    private static final int DEFAULT_WORKER_THREADS = 2;
+
+    /**the default queue size of worker pool*/
+    private static final int DEFAULT_WORKER_QUEUE_SIZE = 64;
+
+    /**the default interval in millisecond after a change*/
+    private static final long DEFAULT_FAST_REFRESH_MS = 2000L;
+
+    /**the default max backoff in millisecond after consecutive failures*/
+    private static final long DEFAULT_MAX_BACKOFF_MS = 300000L;
+
+    /**the max shift of exponential backoff, avoid overflow*/
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
+    /**registered data sources*/
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+    private final Random random = new Random();
+
+    /**random phase in millisecond of this process, which refresh times are aligned to*/
+    private final long phaseMs = random.nextInt((int) TICK_MS * 60);
+
+    /**the interval in millisecond after a change, no more than the interval of data source*/
+    @Getter
+    @Setter
+    private volatile long fastRefreshMs = DEFAULT_FAST_REFRESH_MS;
+
+    /**the max backoff in millisecond after consecutive failures*/
+    @Getter
+    @Setter
+    private volatile long maxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+
+    /**the tick thread*/
+    private final ScheduledExecutorService tickService;
+
+    /**the bounded worker pool*/
+    private final ThreadPoolExecutor workerPool;
+
+    /**
+     * the process-wide instance
+     */
+    public static JdbcRefreshScheduler getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * constructor
+     * @param workerThreads the number of worker threads
+     * @param workerQueueSize the queue size of worker pool
+     */
+    public JdbcRefreshScheduler(int workerThreads, int workerQueueSize) {
+        this.workerPool = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(workerQueueSize), new NamedThreadFactory("sentinel-jdbc-refresh-worker", true));
+        this.tickService = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sentinel-jdbc-refresh-tick", true));
+        this.tickService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * register data source to refresh every intervalMs
+     */
+    public void register(JdbcRefreshable dataSource, long intervalMs) {
+        register(dataSource, intervalMs, false);
+    }
+
+    /**
+     * register data source to refresh every intervalMs
+     * @param refreshNow true-the first refresh is on the next tick, false-the first refresh is aligned to the interval
+     */
+    public void register(JdbcRefreshable dataSource, long intervalMs, boolean refreshNow) {
+        unregister(dataSource);
+        long now = System.currentTimeMillis();
+        registrations.add(new Registration(dataSource, intervalMs, refreshNow ? now : nextAlignedTime(now, intervalMs)));
+        log.info(SentinelSupportConstant.LOG_PRIFEX + dataSource.getClass().getSimpleName()
+                + " registered to refresh scheduler, interval " + intervalMs / 1000.0 + "s");
+    }
+
+    /**
+     * refresh data source once on the next tick, the registration is removed after refresh
+     */
+    public void refreshOnce(JdbcRefreshable dataSource) {
+        unregister(dataSource);
+        registrations.add(new Registration(dataSource, 0L, System.currentTimeMillis()));
+    }
+
+    /**
+     * unregister data source
+     */
+    public void unregister(JdbcRefreshable dataSource) {
+        for (Registration registration : registrations) {
+            if (registration.dataSource == dataSource) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * shutdown the tick thread and worker pool
+     */
+    public void shutdown() {
+        tickService.shutdownNow();
+        workerPool.shutdownNow();
+    }
+
+    /**
+     * find the due data sources, group by javax.sql.DataSource, and submit each group to worker pool
+     */
+    private void tick() {
+        long now = System.currentTimeMillis();
+        Map<DataSource, List<Registration>> groupMap = new IdentityHashMap<DataSource, List<Registration>>();
+        for (Registration registration : registrations) {
+            if (registration.nextRefreshTime > now || !registration.running.compareAndSet(false, true)) {
+                continue;
+            }
+
+            DataSource dbDataSource = registration.dataSource.getDbDataSource();
+            List<Registration> group = groupMap.get(dbDataSource);
+            if (group == null) {
+                group = new ArrayList<Registration>();
+                groupMap.put(dbDataSource, group);
+            }
+            group.add(registration);
+        }
+
+        for (Map.Entry<DataSource, List<Registration>> entry : groupMap.entrySet()) {
+            try {
+                workerPool.execute(new RefreshTask(entry.getKey(), entry.getValue()));
+            } catch (RejectedExecutionException e) {
+                log.warn(SentinelSupportConstant.LOG_PRIFEX + "refresh scheduler worker pool is full, skip " + entry.getValue().size() + " data sources");
+                for (Registration registration : entry.getValue()) {
+                    registration.running.set(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * the next refresh time by the result
+     */
+    private long nextRefreshTime(Registration registration, RefreshResult result, long now) {
+        if (result == RefreshResult.FAILED) {
+            int failures = ++registration.consecutiveFailures;
+            long interval = Math.max(registration.intervalMs, TICK_MS);
+            long backoff = Math.min(interval << Math.min(failures, MAX_BACKOFF_SHIFT), Math.max(maxBackoffMs, interval));
+            long delay = jitter(backoff);
+            log.warn(SentinelSupportConstant.LOG_PRIFEX + registration.dataSource.getClass().getSimpleName() + " refresh failed "
+                    + failures + " times, next refresh after " + delay / 1000.0 + "s");
+            return now + delay;
+        }
+
+        registration.consecutiveFailures = 0;
+        if (result == RefreshResult.CHANGED && registration.intervalMs > 0) {
+            return now + jitter(Math.min(fastRefreshMs, registration.intervalMs));
+        }
+        return nextAlignedTime(now, registration.intervalMs);
+    }
+
+    /**
+     * random delay in [delayMs / 2, delayMs]
+     */
+    private long jitter(long delayMs) {
+        long half = delayMs / 2;
+        return half + (long) (random.nextDouble() * (delayMs - half));
+    }
+
+    /**
+     * the next time after now aligned to phase + k * intervalMs
+     */
+    private long nextAlignedTime(long now, long intervalMs) {
+        long interval = Math.max(intervalMs, TICK_MS);
+        return ((now - phaseMs) / interval + 1) * interval + phaseMs;
+    }
+
+    /**
+     * refresh a group of data sources with one connection
+     */
+    private class RefreshTask implements Runnable {
+
+        private final DataSource dbDataSource;
+
+        private final List<Registration> group;
+
+        RefreshTask(DataSource dbDataSource, List<Registration> group) {
+            this.dbDataSource = dbDataSource;
+            this.group = group;
+        }
+
+        @Override
+        public void run() {
+            RefreshResult[] results = new RefreshResult[group.size()];
+            Connection connection = null;
+            try {
+                connection = dbDataSource.getConnection();
+                for (int i = 0; i < group.size(); i++) {
+                    results[i] = group.get(i).dataSource.refresh(connection);
+                }
+            } catch (Throwable e) {
+                log.error(SentinelSupportConstant.LOG_PRIFEX + "refresh scheduler task exception", e);
+                RecordLog.warn("refresh scheduler task exception", e);
+            } finally {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < group.size(); i++) {
+                    Registration registration = group.get(i);
+                    RefreshResult result = results[i] != null ? results[i] : RefreshResult.FAILED;
+                    if (registration.intervalMs <= 0 && result != RefreshResult.FAILED) {
+                        registrations.remove(registration);
+                    }
+                    registration.nextRefreshTime = nextRefreshTime(registration, result, now);
+                    registration.running.set(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * registration of a data source
+     */
+    private static class Registration {
+
+        private final JdbcRefreshable dataSource;
+
+        /**the interval in millisecond, 0 if refresh once*/
+        private final long intervalMs;
+
+        private volatile long nextRefreshTime;
+
+        /**the count of consecutive failures, only accessed by the running task*/
+        private int consecutiveFailures;
+
+        private final AtomicBoolean running = new AtomicBoolean(false);
+
+        Registration(JdbcRefreshable dataSource, long intervalMs, long nextRefreshTime) {
+            this.dataSource = dataSource;
+            this.intervalMs = intervalMs;
+            this.nextRefreshTime = nextRefreshTime;
+        }
+    }
+
+    /**
+     * lazy holder of the process-wide instance
+     */
+    private static class InstanceHolder {
+        private static final JdbcRefreshScheduler INSTANCE = new JdbcRefreshScheduler(DEFAULT_WORKER_THREADS, DEFAULT_WORKER_QUEUE_SIZE);
+    }
+}
@@ -0,0 +1,23 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+
+/**
+ * refreshed by JdbcRefreshScheduler
+ * @author cdfive
+ */
+public interface JdbcRefreshable {
+
+    /**
+     * the javax.sql.DataSource, refreshables with the same DataSource in the same tick share one connection
+     */
+    DataSource getDbDataSource();
+
+    /**
+     * refresh rules, keep the last good rules if failed
+     * @param connection the shared connection, don't close it
+     * @return the result which decides the next refresh time
+     */
+    RefreshResult refresh(Connection connection);
+}
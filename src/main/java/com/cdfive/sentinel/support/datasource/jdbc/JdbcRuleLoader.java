@@ -0,0 +1,449 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+import com.alibaba.csp.sentinel.log.RecordLog;
+import com.cdfive.sentinel.support.SentinelSupportConstant;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * load flow, degrade and system rules of an app in one statement
+ * <p>
+ * The rule tables are queried by one UNION ALL statement, each part selects the union of rule columns with NULL for
+ * the columns it doesn't have, and the rows are dispatched to FlowJdbcDataSource, DegradeJdbcDataSource and
+ * SystemJdbcDataSource by rule_type. Before app_id is known, the statement also finds app_id by appName,ip,port,
+ * so startup needs only one round trip, and every refresh needs one. The rows are streamed and mapped to XxxRule by
+ * mapRow of the data source, no intermediate List<Map<String, Object>> is built.
+ * </p>
+ * <p>
+ * If versionProbe is set, once app_id is known every refresh first probes all rule tables in one statement, and
+ * only the tables whose probe value changed are read by the UNION ALL, if none changed the refresh ends after the probe.
+ * incremental of the data sources is not used, the changed tables are read fully.
+ * If snapshotDir is set, each data source loads its snapshot file in the constructor, and the first load from
+ * database runs in background.
+ * </p>
+ * @author cdfive
+ */
+@Slf4j
+@Getter
+public class JdbcRuleLoader implements JdbcRefreshable {
+
+    /**
+     * the rule_type of the app row
+     */
+    private static final String APP_RULE_TYPE = "sentinel_app";
+    /**
+     * sql: find app_id by appName,ip,port, only enabled and not deleted
+     */
+    private static final String FIND_APP_ID_SQL = "SELECT id FROM sentinel_app WHERE _name=? AND ip=? AND _port=? AND enabled=1 AND deleted=0 LIMIT 1";
+    /**
+     * sql part: the app row
+     */
+    private static final String READ_APP_PART_SQL = "(SELECT '" + APP_RULE_TYPE + "' AS rule_type,id AS app_id,%s FROM sentinel_app WHERE _name=? AND ip=? AND _port=? AND enabled=1 AND deleted=0 LIMIT 1)";
+    /**
+     * sql part: the rules of a rule table, app_id condition is app_id=? or found by appName,ip,port
+     */
+    private static final String READ_RULE_PART_SQL = "(SELECT '%s' AS rule_type,app_id AS app_id,%s FROM %s WHERE app_id=%s AND enabled=1 AND deleted=0)";
+    /**
+     * sql: order of the union
+     */
+    private static final String ORDER_BY_SQL = " ORDER BY rule_type,id";
+    /**
+     * sql part: probe count, max id and max update_time of a rule table by app_id
+     */
+    private static final String PROBE_COUNT_AND_UPDATE_TIME_PART_SQL = "(SELECT '%s' AS rule_type,COUNT(*) AS rule_count,MAX(id) AS max_id,MAX(update_time) AS max_update_time FROM %s WHERE app_id=?)";
+    /**
+     * sql: probe versions of rule tables by app_id
+     */
+    private static final String PROBE_VERSION_SQL = "SELECT rule_table AS rule_type,version FROM sentinel_rule_version WHERE app_id=? AND rule_table IN (%s)";
+    /**
+     * the columns selected besides rule columns
+     */
+    private static final String[] COMMON_COLUMNS = {"id", "update_time"};
+
+    /**a standard javax.sql.DataSource*/
+    private final DataSource dbDataSource;
+
+    /**app name, the application name*/
+    private final String appName;
+
+    /**the ip of server which the app deployed*/
+    private final String ip;
+
+    /**the port the app used*/
+    private final Integer port;
+
+    /**the interval in second which is used for refresh the rules, if null needn't refresh*/
+    private final Long refreshSec;
+
+    /**the directory of local snapshot files, if null no snapshot*/
+    private final String snapshotDir;
+
+    /**the timeout in second of the query, if null no timeout*/
+    @Setter
+    private volatile Integer queryTimeoutSec;
+
+    /**the probe before reading rules, only the tables whose probe value changed are read, default NONE*/
+    private volatile RuleVersionProbe versionProbe = RuleVersionProbe.NONE;
+
+    /**app id, null until found by appName,ip,port*/
+    private volatile Integer appId;
+
+    /**flow rule JdbcDataSource*/
+    private final FlowJdbcDataSource flowDataSource;
+
+    /**degrade rule JdbcDataSource*/
+    private final DegradeJdbcDataSource degradeDataSource;
+
+    /**system rule JdbcDataSource*/
+    private final SystemJdbcDataSource systemDataSource;
+
+    /**the data sources to dispatch rows*/
+    private final List<AbstractJdbcDataSource<?>> dataSources;
+
+    /**sql which finds app_id by appName,ip,port*/
+    private final String readByAppSql;
+
+    /**sql by app_id of all rule tables*/
+    private final String readByAppIdSql;
+
+    /**the union of columns selected by each part*/
+    private final Set<String> columns;
+
+    /**the refresh scheduler, null if needn't refresh*/
+    private JdbcRefreshScheduler refreshScheduler;
+
+    /**
+     * constructor
+     * @param dbDataSource a standard javax.sql.DataSource
+     * @param appName application name
+     * @param ip the ip of server which the app deployed
+     * @param port the port the app used
+     * @param refreshSec the interval in second which is used for refresh the rules, if null needn't refresh
+     */
+    public JdbcRuleLoader(DataSource dbDataSource, String appName, String ip, Integer port, Long refreshSec) {
+        this(dbDataSource, appName, ip, port, refreshSec, null);
+    }
+
+    /**
+     * constructor
+     * @param dbDataSource a standard javax.sql.DataSource
+     * @param appName application name
+     * @param ip the ip of server which the app deployed
+     * @param port the port the app used
+     * @param refreshSec the interval in second which is used for refresh the rules, if null needn't refresh
+     * @param snapshotDir the directory of local snapshot files, if null no snapshot
+     *
+     * if snapshotDir is not null, the rules are loaded from the snapshot files first, then reconciled with database in background
+     */
+    public JdbcRuleLoader(DataSource dbDataSource, String appName, String ip, Integer port, Long refreshSec, String snapshotDir) {
+        if (dbDataSource == null) {
+            throw new IllegalArgumentException("javax.sql.DataSource dbDataSource can't be null");
+        }
+        if (appName == null || appName.isEmpty()) {
+            throw new IllegalArgumentException("appName can't be null or empty");
+        }
+        if (refreshSec != null && refreshSec <= 0) {
+            throw new IllegalArgumentException("refreshSec must > 0");
+        }
+
+        this.dbDataSource = dbDataSource;
+        this.appName = appName;
+        this.ip = ip;
+        this.port = port;
+        this.refreshSec = refreshSec;
+        this.snapshotDir = snapshotDir;
+
+        this.flowDataSource = new FlowJdbcDataSource(this);
+        this.degradeDataSource = new DegradeJdbcDataSource(this);
+        this.systemDataSource = new SystemJdbcDataSource(this);
+        this.dataSources = Arrays.<AbstractJdbcDataSource<?>>asList(flowDataSource, degradeDataSource, systemDataSource);
+
+        Set<String> columns = new LinkedHashSet<String>(Arrays.asList(COMMON_COLUMNS));
+        for (AbstractJdbcDataSource<?> dataSource : dataSources) {
+            columns.addAll(Arrays.asList(dataSource.initRuleColumns()));
+        }
+        this.columns = columns;
+        this.readByAppSql = initReadSql(dataSources, true);
+        this.readByAppIdSql = initReadSql(dataSources, false);
+
+        if (snapshotDir != null) {
+            refreshScheduler = JdbcRefreshScheduler.getInstance();
+            if (refreshSec != null) {
+                refreshScheduler.register(this, refreshSec * 1000, true);
+            } else {
+                refreshScheduler.refreshOnce(this);
+            }
+            return;
+        }
+
+        load(null);
+
+        if (refreshSec != null) {
+            refreshScheduler = JdbcRefreshScheduler.getInstance();
+            refreshScheduler.register(this, refreshSec * 1000);
+        }
+    }
+
+    @Override
+    public RefreshResult refresh(Connection connection) {
+        return load(connection);
+    }
+
+    /**
+     * set the probe before reading rules, the data sources compare probe values in the same way
+     */
+    public void setVersionProbe(RuleVersionProbe versionProbe) {
+        this.versionProbe = versionProbe != null ? versionProbe : RuleVersionProbe.NONE;
+        for (AbstractJdbcDataSource<?> dataSource : dataSources) {
+            dataSource.setVersionProbe(this.versionProbe);
+        }
+    }
+
+    /**
+     * unregister from the refresh scheduler
+     */
+    public void close() {
+        if (refreshScheduler != null) {
+            refreshScheduler.unregister(this);
+        }
+    }
+
+    /**
+     * query all types of rules in one statement, and dispatch the rows to data sources
+     * @param sharedConnection the shared connection which is not closed, if null get connection from dbDataSource
+     * @return the result of load, the rules are kept if failed
+     */
+    private RefreshResult load(Connection sharedConnection) {
+        long start = System.currentTimeMillis();
+        Connection connection = sharedConnection;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        try {
+            if (connection == null) {
+                connection = dbDataSource.getConnection();
+            }
+
+            Integer currentAppId = appId;
+            List<AbstractJdbcDataSource<?>> readDataSources = dataSources;
+            Map<String, Map<String, Object>> probeValueMap = null;
+            if (currentAppId != null && versionProbe != RuleVersionProbe.NONE) {
+                probeValueMap = probe(connection, currentAppId);
+                readDataSources = new ArrayList<AbstractJdbcDataSource<?>>();
+                for (AbstractJdbcDataSource<?> dataSource : dataSources) {
+                    if (!dataSource.isProbeUnchanged(probeValueMap.get(dataSource.getRuleTableName()))) {
+                        readDataSources.add(dataSource);
+                    }
+                }
+                if (readDataSources.isEmpty()) {
+                    return RefreshResult.UNCHANGED;
+                }
+            }
+
+            Object[] sqlParameters;
+            if (currentAppId == null) {
+                preparedStatement = connection.prepareStatement(readByAppSql);
+                sqlParameters = initSqlParameters(new Object[]{appName, ip, port}, dataSources.size() + 1);
+            } else {
+                preparedStatement = connection.prepareStatement(readDataSources == dataSources ? readByAppIdSql : initReadSql(readDataSources, false));
+                sqlParameters = initSqlParameters(new Object[]{currentAppId}, readDataSources.size());
+            }
+            if (queryTimeoutSec != null) {
+                preparedStatement.setQueryTimeout(queryTimeoutSec);
+            }
+            for (int i = 0; i < sqlParameters.length; i++) {
+                preparedStatement.setObject(i + 1, sqlParameters[i]);
+            }
+
+            resultSet = preparedStatement.executeQuery();
+            ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+            int ruleTypeIndex = resultSet.findColumn("rule_type");
+            int appIdIndex = resultSet.findColumn("app_id");
+            Map<String, RuleCollector<?>> collectorMap = new HashMap<String, RuleCollector<?>>();
+            for (AbstractJdbcDataSource<?> dataSource : readDataSources) {
+                collectorMap.put(dataSource.getRuleTableName(), newRuleCollector(dataSource, resultSetMetaData));
+            }
+
+            Integer foundAppId = null;
+            int rowCount = 0;
+            while (resultSet.next()) {
+                rowCount++;
+                String ruleType = resultSet.getString(ruleTypeIndex);
+                RuleCollector<?> collector = collectorMap.get(ruleType);
+                if (collector != null) {
+                    collector.add(resultSet);
+                } else if (APP_RULE_TYPE.equals(ruleType)) {
+                    foundAppId = resultSet.getInt(appIdIndex);
+                }
+            }
+
+            if (currentAppId == null) {
+                if (foundAppId == null) {
+                    log.error("can't find appId,appName=" + appName + ",ip=" + ip + ",port=" + port);
+                    return RefreshResult.FAILED;
+                }
+
+                appId = foundAppId;
+                for (AbstractJdbcDataSource<?> dataSource : dataSources) {
+                    dataSource.setAppId(appId);
+                }
+                log.info(SentinelSupportConstant.LOG_PRIFEX + "JdbcRuleLoader initAppId, appId=" + appId);
+            }
+
+            boolean changed = false;
+            for (RuleCollector<?> collector : collectorMap.values()) {
+                changed |= collector.apply();
+            }
+            if (probeValueMap != null) {
+                for (AbstractJdbcDataSource<?> dataSource : readDataSources) {
+                    dataSource.setLastProbeValue(probeValueMap.get(dataSource.getRuleTableName()));
+                }
+            }
+
+            log.info(SentinelSupportConstant.LOG_PRIFEX + "app(" + appId + ") " + readDataSources.size() + " tables " + rowCount + " rows load cost "
+                    + (System.currentTimeMillis() - start) / 1000.0 + "s");
+            return changed ? RefreshResult.CHANGED : RefreshResult.UNCHANGED;
+        } catch (Exception e) {
+            log.error(SentinelSupportConstant.LOG_PRIFEX + "JdbcRuleLoader load exception", e);
+            RecordLog.warn("JdbcRuleLoader load exception", e);
+            return RefreshResult.FAILED;
+        } finally {
+            if (sharedConnection == null) {
+                AbstractJdbcDataSource.closeJdbcObjects(resultSet, preparedStatement, connection);
+            } else {
+                AbstractJdbcDataSource.closeJdbcObjects(resultSet, preparedStatement);
+            }
+        }
+    }
+
+    private static <R> RuleCollector<R> newRuleCollector(AbstractJdbcDataSource<R> dataSource, ResultSetMetaData resultSetMetaData) throws SQLException {
+        dataSource.beginMapRows();
+        return new RuleCollector<R>(dataSource, dataSource.resolveRuleColumnIndexes(resultSetMetaData));
+    }
+
+    /**
+     * probe all rule tables in one statement
+     * @return rule table name=>probe value, the rule table is absent if no probe value
+     */
+    private Map<String, Map<String, Object>> probe(Connection connection, Integer currentAppId) throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        Object[] sqlParameters;
+        if (versionProbe == RuleVersionProbe.VERSION_TABLE) {
+            sqlParameters = new Object[dataSources.size() + 1];
+            sqlParameters[0] = currentAppId;
+            for (int i = 0; i < dataSources.size(); i++) {
+                sql.append(i > 0 ? ",?" : "?");
+                sqlParameters[i + 1] = dataSources.get(i).getRuleTableName();
+            }
+            sql = new StringBuilder(String.format(PROBE_VERSION_SQL, sql));
+        } else {
+            for (AbstractJdbcDataSource<?> dataSource : dataSources) {
+                if (sql.length() > 0) {
+                    sql.append(" UNION ALL ");
+                }
+                sql.append(String.format(PROBE_COUNT_AND_UPDATE_TIME_PART_SQL, dataSource.getRuleTableName(), dataSource.getRuleTableName()));
+            }
+            sqlParameters = initSqlParameters(new Object[]{currentAppId}, dataSources.size());
+        }
+
+        Map<String, Map<String, Object>> probeValueMap = new HashMap<String, Map<String, Object>>();
+        for (Map<String, Object> row : AbstractJdbcDataSource.findListMapBySqlWithConnection(connection, sql.toString(), sqlParameters, queryTimeoutSec)) {
+            probeValueMap.put(String.valueOf(row.get("rule_type")), row);
+        }
+        return probeValueMap;
+    }
+
+    /**
+     * the UNION ALL sql of the rule tables
+     * @param readDataSources the data sources whose rule tables are read
+     * @param byApp true-find app_id by appName,ip,port and also select the app row, false-by app_id
+     */
+    private String initReadSql(List<AbstractJdbcDataSource<?>> readDataSources, boolean byApp) {
+        StringBuilder sql = new StringBuilder();
+        if (byApp) {
+            sql.append(String.format(READ_APP_PART_SQL, initPartColumns(columns, Collections.<String>emptySet())));
+        }
+
+        for (AbstractJdbcDataSource<?> dataSource : readDataSources) {
+            Set<String> ruleColumns = new LinkedHashSet<String>(Arrays.asList(COMMON_COLUMNS));
+            ruleColumns.addAll(Arrays.asList(dataSource.initRuleColumns()));
+
+            if (sql.length() > 0) {
+                sql.append(" UNION ALL ");
+            }
+            String ruleTableName = dataSource.getRuleTableName();
+            sql.append(String.format(READ_RULE_PART_SQL, ruleTableName, initPartColumns(columns, ruleColumns),
+                    ruleTableName, byApp ? "(" + FIND_APP_ID_SQL + ")" : "?"));
+        }
+
+        return sql.append(ORDER_BY_SQL).toString();
+    }
+
+    /**
+     * the select columns of a part, eg: resource AS resource,NULL AS time_window,...
+     * @param columns the union of columns
+     * @param partColumns the columns the part has
+     */
+    private String initPartColumns(Set<String> columns, Set<String> partColumns) {
+        StringBuilder sql = new StringBuilder();
+        for (String column : columns) {
+            if (sql.length() > 0) {
+                sql.append(',');
+            }
+            sql.append(partColumns.contains(column) ? column : "NULL").append(" AS ").append(column);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * the sql parameters of all parts, the app part and each rule part use the same parameters
+     * @param partCount the count of parts
+     */
+    private Object[] initSqlParameters(Object[] partSqlParameters, int partCount) {
+        Object[] sqlParameters = new Object[partSqlParameters.length * partCount];
+        for (int i = 0; i < partCount; i++) {
+            System.arraycopy(partSqlParameters, 0, sqlParameters, i * partSqlParameters.length, partSqlParameters.length);
+        }
+        return sqlParameters;
+    }
+
+    /**
+     * collect the rules of a data source from the rows
+     */
+    private static class RuleCollector<R> {
+
+        private final AbstractJdbcDataSource<R> dataSource;
+
+        private final int[] columnIndexes;
+
+        private final List<R> rules = new ArrayList<R>();
+
+        RuleCollector(AbstractJdbcDataSource<R> dataSource, int[] columnIndexes) {
+            this.dataSource = dataSource;
+            this.columnIndexes = columnIndexes;
+        }
+
+        void add(ResultSet resultSet) throws SQLException {
+            rules.add(dataSource.mapRow(resultSet, columnIndexes));
+        }
+
+        boolean apply() {
+            return dataSource.applyRules(rules);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+/**
+ * the result of a refresh, used by JdbcRefreshScheduler to decide the next refresh time
+ * @author cdfive
+ */
+public enum RefreshResult {
+
+    /**the rules changed and applied, the next refresh uses the fast interval*/
+    CHANGED,
+
+    /**the rules unchanged, the next refresh uses the interval*/
+    UNCHANGED,
+
+    /**the refresh failed and the last good rules are kept, the next refresh backs off*/
+    FAILED
+}
@@ -0,0 +1,231 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * local snapshot file of the last applied rules of a rule table
+ * <p>
+ * Layout: header = magic(int) + format version(short) + save time(long) + body length(int) + CRC32 of body(long),
+ * body = column count(int) + column names + row count(int) + rows, each value is a tag(byte) followed by
+ * long, double or UTF-8 string(int length + bytes).
+ * The file is read into a heap buffer by FileChannel.read, a memory-mapped buffer is not used since it keeps the
+ * file locked on Windows until it is garbage collected, and the rename of the next write would fail. The file is
+ * written to a temp file in the same directory which is then renamed to the snapshot file, so a reader never sees
+ * a partial file.
+ * </p>
+ * @author cdfive
+ */
+class RuleSnapshotFile {
+
+    /**magic of snapshot file, "SSNP"*/
+    private static final int MAGIC = 0x53534e50;
+
+    /**the format version, a file of other version is ignored*/
+    private static final short FORMAT_VERSION = 1;
+
+    /**header length: magic + format version + save time + body length + checksum*/
+    private static final int HEADER_LENGTH = 4 + 2 + 8 + 4 + 8;
+
+    /**value tags*/
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_LONG = 1;
+    private static final byte TAG_DOUBLE = 2;
+    private static final byte TAG_STRING = 3;
+
+    private static final String CHARSET = "UTF-8";
+
+    /**the snapshot file*/
+    private final File file;
+
+    /**
+     * constructor
+     * @param dir the directory of snapshot files
+     * @param name the name which identifies the data source, eg: appName-ip-port-ruleTableName
+     */
+    RuleSnapshotFile(String dir, String name) {
+        this.file = new File(dir, name.replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot");
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * read rows of the snapshot
+     * @return rows keyed by column, null if the file doesn't exist
+     * @throws IOException if the file is broken, eg: magic, version or checksum mismatch
+     */
+    List<Map<String, Object>> read() throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size < HEADER_LENGTH) {
+                throw new IOException("snapshot file too short, " + file);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("snapshot file too large, " + file);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("snapshot file truncated while reading, " + file);
+                }
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("snapshot file magic mismatch, " + file);
+            }
+            short formatVersion = buffer.getShort();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("snapshot file format version " + formatVersion + " not supported, " + file);
+            }
+            buffer.getLong();// save time
+            int bodyLength = buffer.getInt();
+            long checksum = buffer.getLong();
+            if (bodyLength != size - HEADER_LENGTH) {
+                throw new IOException("snapshot file body length mismatch, " + file);
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(buffer.array(), buffer.position(), bodyLength);
+            if (crc32.getValue() != checksum) {
+                throw new IOException("snapshot file checksum mismatch, " + file);
+            }
+
+            String[] columns = new String[buffer.getInt()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = readString(buffer);
+            }
+
+            int rowCount = buffer.getInt();
+            List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                Map<String, Object> row = new HashMap<String, Object>();
+                for (String column : columns) {
+                    row.put(column, readValue(buffer));
+                }
+                rows.add(row);
+            }
+            return rows;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * write rows to the snapshot atomically
+     * @param columns the columns
+     * @param rows the values of each row, in the same order as columns
+     */
+    void write(String[] columns, List<Object[]> rows) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeInt(columns.length);
+        for (String column : columns) {
+            writeString(body, column);
+        }
+        body.writeInt(rows.size());
+        for (Object[] row : rows) {
+            for (Object value : row) {
+                writeValue(body, value);
+            }
+        }
+        body.flush();
+
+        byte[] bodyArray = bodyBytes.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(bodyArray);
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("can't create snapshot dir " + dir);
+        }
+
+        File tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(fileOutputStream);
+                out.writeInt(MAGIC);
+                out.writeShort(FORMAT_VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(bodyArray.length);
+                out.writeLong(crc32.getValue());
+                out.write(bodyArray);
+                out.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                fileOutputStream.close();
+            }
+
+            // renameTo doesn't replace the existing file on some platforms, eg: Windows
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("can't rename " + tempFile + " to " + file);
+            }
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        }
+    }
+
+    private Object readValue(ByteBuffer buffer) throws IOException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_LONG:
+                return buffer.getLong();
+            case TAG_DOUBLE:
+                return buffer.getDouble();
+            case TAG_STRING:
+                return readString(buffer);
+            default:
+                throw new IOException("snapshot file unknown value tag " + tag + ", " + file);
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.writeByte(TAG_LONG);
+            out.writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else {
+            out.writeByte(TAG_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
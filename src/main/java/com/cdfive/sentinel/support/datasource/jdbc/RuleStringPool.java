@@ -0,0 +1,52 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * the pool which shares the string of rule columns across refreshes
+ * <p>
+ * resource,limit_app... are mostly unchanged between refreshes, the rules mapped by each refresh share the same
+ * string instances, strings not used in the last generation are released by rotate
+ * </p>
+ * @author cdfive
+ */
+class RuleStringPool {
+
+    /**strings used in the current generation*/
+    private Map<String, String> current = new HashMap<String, String>();
+
+    /**strings used in the previous generation*/
+    private Map<String, String> previous = new HashMap<String, String>();
+
+    /**
+     * get the pooled string equals to the string
+     * @param str the string, may be null
+     * @return the pooled string, null if the string is null
+     */
+    synchronized String intern(String str) {
+        if (str == null) {
+            return null;
+        }
+
+        String pooled = current.get(str);
+        if (pooled != null) {
+            return pooled;
+        }
+
+        pooled = previous.get(str);
+        if (pooled == null) {
+            pooled = str;
+        }
+        current.put(pooled, pooled);
+        return pooled;
+    }
+
+    /**
+     * start a new generation, strings only used before the current generation are released
+     */
+    synchronized void rotate() {
+        previous = current;
+        current = new HashMap<String, String>();
+    }
+}
@@ -0,0 +1,20 @@
+package com.cdfive.sentinel.support.datasource.jdbc;
+
+/**
+ * rule version probe, a cheap single row query before reading rules, only read rules when the probe value changed
+ * @author cdfive
+ */
+public enum RuleVersionProbe {
+
+    /**no probe, always read rules*/
+    NONE,
+
+    /**
+     * COUNT(*), MAX(id) and MAX(update_time) of the rule table by app_id, include disabled and deleted rows,
+     * rules are still read while MAX(update_time) is within a few seconds of now since updates in the same second are not visible in the probe
+     */
+    COUNT_AND_UPDATE_TIME,
+
+    /**version of the rule table by app_id in sentinel_rule_version, increased by write*/
+    VERSION_TABLE
+}
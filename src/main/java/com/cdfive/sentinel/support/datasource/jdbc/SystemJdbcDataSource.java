@@ -3,6 +3,8 @@ package com.cdfive.sentinel.support.datasource.jdbc;
 import com.alibaba.csp.sentinel.slots.system.SystemRule;
 
 import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -11,13 +13,15 @@ import java.util.Map;
  * system rule JdbcDataSource
  * @author cdfive
  */
-public class SystemJdbcDataSource extends AbstractJdbcDataSource<List<SystemRule>> {
+public class SystemJdbcDataSource extends AbstractJdbcDataSource<SystemRule> {
 
     private static final String SYSTEM_RULE_TABLE = "sentinel_system_rule";
 
     private static final String INSERT_SYSTEM_RULE_SQL = "INSERT INTO sentinel_system_rule"
-            + " (app_id,highest_system_load,qps,avg_rt,max_thread,create_time,update_time,enabled,deleted)"
-            + " VALUES(?,?,?,?,?,NOW(),NOW(),1,0)";
+            + " (app_id,highest_system_load,qps,avg_rt,max_thread,create_time,update_time,change_status,enabled,deleted)"
+            + " VALUES(?,?,?,?,?,NOW(),NOW(),1,1,0)";
+
+    private static final String[] SYSTEM_RULE_COLUMNS = {"highest_system_load", "qps", "avg_rt", "max_thread"};
 
     public SystemJdbcDataSource(DataSource dbDataSource, String appName, String ip, Integer port) {
         super(dbDataSource, appName, ip, port);
@@ -35,6 +39,14 @@ public class SystemJdbcDataSource extends AbstractJdbcDataSource<List<SystemRule
         super(dbDataSource, appId, appName, ip, port, refreshSec);
     }
 
+    public SystemJdbcDataSource(DataSource dbDataSource, Integer appId, String appName, String ip, Integer port, Long refreshSec, String snapshotDir) {
+        super(dbDataSource, appId, appName, ip, port, refreshSec, snapshotDir);
+    }
+
+    SystemJdbcDataSource(JdbcRuleLoader ruleLoader) {
+        super(ruleLoader);
+    }
+
     @Override
     protected String initRuleTableName() {
         return SYSTEM_RULE_TABLE;
@@ -62,11 +74,26 @@ public class SystemJdbcDataSource extends AbstractJdbcDataSource<List<SystemRule
         return systemRules;
     }
 
+    @Override
+    protected SystemRule mapRow(ResultSet resultSet, int[] columnIndexes) throws SQLException {
+        SystemRule systemRule = new SystemRule();
+        systemRule.setHighestSystemLoad(getResultSetDoubleVal(resultSet, columnIndexes[0]));
+        systemRule.setQps(getResultSetDoubleVal(resultSet, columnIndexes[1]));
+        systemRule.setAvgRt(getResultSetLongVal(resultSet, columnIndexes[2]));
+        systemRule.setMaxThread(getResultSetLongVal(resultSet, columnIndexes[3]));
+        return systemRule;
+    }
+
     @Override
     protected String initInsertSql() {
         return INSERT_SYSTEM_RULE_SQL;
     }
 
+    @Override
+    protected String[] initRuleColumns() {
+        return SYSTEM_RULE_COLUMNS;
+    }
+
     @Override
     protected List<Object[]> initInsertSqlParametersList(List<SystemRule> value) {
         if (value == null || value.size() == 0) {